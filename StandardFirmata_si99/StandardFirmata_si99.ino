@@ -42,6 +42,9 @@
 // the minimum interval for sampling analog input
 #define MINIMUM_SAMPLING_INTERVAL   1
 
+// user defined sysex echoing when servo messages arrived and were applied, in micros()
+#define LATENCY_PROBE               0x0D
+
 
 /*==============================================================================
  * GLOBAL VARIABLES
@@ -91,6 +94,11 @@ byte servoCount = 0;
 
 boolean isResetting = false;
 
+/* latency probe */
+unsigned long servoReceivedMicros;  // first servo message since the last probe arrived
+unsigned long servoAppliedMicros;   // last servo message since the last probe was applied
+boolean isServoProbed = true;       // no servo message since the last probe
+
 
 /* utility functions */
 void wireWrite(byte data)
@@ -444,6 +452,21 @@ void reportDigitalCallback(byte port, int value)
  * SYSEX-BASED commands
  *============================================================================*/
 
+// 14 bits as two 7 bit bytes, least significant first
+void writeProbeWord(unsigned int value)
+{
+  Firmata.write(value & 0x7F);
+  Firmata.write((value >> 7) & 0x7F);
+}
+
+// 32 bits as three words, least significant first
+void writeProbeMicros(unsigned long time)
+{
+  writeProbeWord(time & 0x3FFF);
+  writeProbeWord((time >> 14) & 0x3FFF);
+  writeProbeWord(time >> 28);
+}
+
 void sysexCallback(byte command, byte argc, byte *argv)
 {
   byte mode;
@@ -564,6 +587,10 @@ void sysexCallback(byte command, byte argc, byte *argv)
 
       break;
     case SERVO_CONFIG:
+      if (isServoProbed) {
+        servoReceivedMicros = micros();
+        isServoProbed = false;
+      }
       if (argc > 4) {
         // these vars are here for clarity, they'll optimized away by the compiler
         byte pin = argv[0];
@@ -578,6 +605,27 @@ void sysexCallback(byte command, byte argc, byte *argv)
           setPinModeCallback(pin, PIN_MODE_SERVO);
         }
       }
+      servoAppliedMicros = micros();
+      break;
+    case LATENCY_PROBE:
+      // reply with the sequence number, the sampling interval, when the servo messages
+      // since the last probe arrived and were applied, and when this probe arrived
+      if (argc > 0) {
+        unsigned long probeReceivedMicros = micros();
+        if (isServoProbed) {
+          servoReceivedMicros = probeReceivedMicros;
+          servoAppliedMicros = probeReceivedMicros;
+        }
+        Firmata.write(START_SYSEX);
+        Firmata.write(LATENCY_PROBE);
+        writeProbeWord(argv[0]);
+        writeProbeWord(samplingInterval);
+        writeProbeMicros(servoReceivedMicros);
+        writeProbeMicros(servoAppliedMicros);
+        writeProbeMicros(probeReceivedMicros);
+        Firmata.write(END_SYSEX);
+        isServoProbed = true;
+      }
       break;
     case SAMPLING_INTERVAL:
       if (argc > 1) {
@@ -0,0 +1,293 @@
+package hu.elte.prabi.campusexplorer;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.slf4j.helpers.MessageFormatter;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Logging that keeps formatting and I/O off the calling thread.
+ *
+ * Callers only store the tag, the slf4j-style message pattern and its arguments into a
+ * preallocated lock-free ring buffer. A background thread formats the entries, forwards
+ * them to logcat and appends them to a rotating text file. When the ring is full, new
+ * entries are dropped and counted rather than blocking the caller. Hot paths should check
+ * isLoggable() before computing arguments.
+ *
+ * Strings, boxed primitives, enums and exceptions are stored as they are. Any other argument,
+ * e.g. a histogram that keeps recording, is converted to a string on the calling thread, so
+ * the message shows it as it was when logged.
+ */
+final class AsyncLog {
+
+    private static final int CAPACITY = 4096;  // a power of two
+    private static final int MASK = CAPACITY - 1;
+    private static final long MAX_FILE_BYTES = 1024 * 1024;
+    private static final int MAX_FILES = 5;
+    private static final long DRAIN_PERIOD_NANOS = 20 * 1000 * 1000;
+
+    // A primitive argument, if any, is the first argument of its entry.
+    private static final byte NO_PRIMITIVE = 0;
+    private static final byte LONG_ARG = 1;
+    private static final byte DOUBLE_ARG = 2;
+
+    private static final int MIN_LEVEL = Log.DEBUG;
+
+    // Entry fields, one slot per ring position.
+    private static final long[] times = new long[CAPACITY];
+    private static final int[] levels = new int[CAPACITY];
+    private static final String[] tags = new String[CAPACITY];
+    private static final String[] patterns = new String[CAPACITY];
+    private static final Object[] firstArgs = new Object[CAPACITY];
+    private static final Object[] secondArgs = new Object[CAPACITY];
+    private static final long[] primitiveArgs = new long[CAPACITY];
+    private static final byte[] primitiveKinds = new byte[CAPACITY];
+
+    // Sequence number published in each slot once its entry is complete.
+    private static final AtomicLongArray published = new AtomicLongArray(CAPACITY);
+    private static final AtomicLong claimed = new AtomicLong();
+    private static final AtomicLong consumed = new AtomicLong();
+    private static final AtomicLong dropped = new AtomicLong();
+
+    private static Thread drainer;
+    private static File logDirectory;
+    private static Writer fileWriter;
+    private static long fileBytes;
+
+    static {
+        for (int i = 0; i < CAPACITY; i++) {
+            published.set(i, -1);
+        }
+    }
+
+    private AsyncLog() {
+    }
+
+    // Start draining into rotating files in the given directory. Entries logged earlier are kept.
+    public static synchronized void start(File directory) {
+        if (drainer != null) {
+            return;
+        }
+        logDirectory = directory;
+        if (!logDirectory.isDirectory() && !logDirectory.mkdirs()) {
+            Log.e("AsyncLog", "Failed to create log directory " + directory);
+        }
+        drainer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                drainLoop();
+            }
+        }, "AsyncLog");
+        drainer.setDaemon(true);
+        drainer.setPriority(Thread.MIN_PRIORITY);
+        drainer.start();
+    }
+
+    public static boolean isLoggable(int level) {
+        return level >= MIN_LEVEL;
+    }
+
+    public static void d(String tag, String pattern) {
+        log(Log.DEBUG, tag, pattern, null, null, NO_PRIMITIVE, 0);
+    }
+
+    public static void d(String tag, String pattern, Object arg) {
+        log(Log.DEBUG, tag, pattern, arg, null, NO_PRIMITIVE, 0);
+    }
+
+    public static void d(String tag, String pattern, Object arg1, Object arg2) {
+        log(Log.DEBUG, tag, pattern, arg1, arg2, NO_PRIMITIVE, 0);
+    }
+
+    public static void d(String tag, String pattern, long arg) {
+        log(Log.DEBUG, tag, pattern, null, null, LONG_ARG, arg);
+    }
+
+    public static void d(String tag, String pattern, double arg) {
+        log(Log.DEBUG, tag, pattern, null, null, DOUBLE_ARG, Double.doubleToRawLongBits(arg));
+    }
+
+    public static void i(String tag, String pattern) {
+        log(Log.INFO, tag, pattern, null, null, NO_PRIMITIVE, 0);
+    }
+
+    public static void i(String tag, String pattern, Object arg) {
+        log(Log.INFO, tag, pattern, arg, null, NO_PRIMITIVE, 0);
+    }
+
+    public static void i(String tag, String pattern, Object arg1, Object arg2) {
+        log(Log.INFO, tag, pattern, arg1, arg2, NO_PRIMITIVE, 0);
+    }
+
+    public static void i(String tag, String pattern, long arg, Object arg2) {
+        log(Log.INFO, tag, pattern, arg2, null, LONG_ARG, arg);
+    }
+
+    public static void w(String tag, String pattern) {
+        log(Log.WARN, tag, pattern, null, null, NO_PRIMITIVE, 0);
+    }
+
+    public static void w(String tag, String pattern, Object arg) {
+        log(Log.WARN, tag, pattern, arg, null, NO_PRIMITIVE, 0);
+    }
+
+    public static void e(String tag, String pattern) {
+        log(Log.ERROR, tag, pattern, null, null, NO_PRIMITIVE, 0);
+    }
+
+    public static void e(String tag, String pattern, Object arg) {
+        log(Log.ERROR, tag, pattern, arg, null, NO_PRIMITIVE, 0);
+    }
+
+    private static void log(int level, String tag, String pattern, Object arg1, Object arg2,
+                            byte primitiveKind, long primitiveArg) {
+        if (level < MIN_LEVEL) {
+            return;
+        }
+        arg1 = snapshot(arg1);
+        arg2 = snapshot(arg2);
+
+        // Claim a free slot, or drop the entry if the drainer has fallen a full ring behind.
+        long sequence;
+        do {
+            sequence = claimed.get();
+            if (sequence - consumed.get() >= CAPACITY) {
+                dropped.incrementAndGet();
+                return;
+            }
+        } while (!claimed.compareAndSet(sequence, sequence + 1));
+
+        int slot = (int) (sequence & MASK);
+        times[slot] = SystemClock.elapsedRealtime();
+        levels[slot] = level;
+        tags[slot] = tag;
+        patterns[slot] = pattern;
+        firstArgs[slot] = arg1;
+        secondArgs[slot] = arg2;
+        primitiveArgs[slot] = primitiveArg;
+        primitiveKinds[slot] = primitiveKind;
+        published.lazySet(slot, sequence);
+    }
+
+    // Arguments are only formatted later on the drainer thread, so take a string of any that
+    // might change in the meantime.
+    private static Object snapshot(Object arg) {
+        if (arg == null || arg instanceof String || arg instanceof Integer ||
+            arg instanceof Long || arg instanceof Double || arg instanceof Float ||
+            arg instanceof Short || arg instanceof Byte || arg instanceof Boolean ||
+            arg instanceof Character || arg instanceof Enum || arg instanceof Throwable) {
+            return arg;
+        }
+        return String.valueOf(arg);
+    }
+
+    private static void drainLoop() {
+        long lastDropped = 0;
+        while (true) {
+            long sequence = consumed.get();
+            int slot = (int) (sequence & MASK);
+            if (published.get(slot) != sequence) {
+                long droppedNow = dropped.get();
+                if (droppedNow != lastDropped) {
+                    write(Log.WARN, "AsyncLog", SystemClock.elapsedRealtime(),
+                          "Dropped " + (droppedNow - lastDropped) + " log entries.");
+                    lastDropped = droppedNow;
+                }
+                flush();
+                LockSupport.parkNanos(DRAIN_PERIOD_NANOS);
+                continue;
+            }
+
+            Object[] args;
+            switch (primitiveKinds[slot]) {
+                case LONG_ARG:
+                    args = new Object[]{primitiveArgs[slot], firstArgs[slot], secondArgs[slot]};
+                    break;
+                case DOUBLE_ARG:
+                    args = new Object[]{Double.longBitsToDouble(primitiveArgs[slot]),
+                                        firstArgs[slot], secondArgs[slot]};
+                    break;
+                default:
+                    args = new Object[]{firstArgs[slot], secondArgs[slot]};
+                    break;
+            }
+            String message = MessageFormatter.arrayFormat(patterns[slot], args).getMessage();
+            int level = levels[slot];
+            String tag = tags[slot];
+            long time = times[slot];
+
+            // Release the references before handing the slot back to the producers.
+            tags[slot] = null;
+            patterns[slot] = null;
+            firstArgs[slot] = null;
+            secondArgs[slot] = null;
+            consumed.lazySet(sequence + 1);
+
+            write(level, tag, time, message);
+        }
+    }
+
+    private static void write(int level, String tag, long time, String message) {
+        Log.println(level, tag, message);
+        if (logDirectory == null) {
+            return;
+        }
+        try {
+            if (fileWriter == null || fileBytes > MAX_FILE_BYTES) {
+                rotate();
+            }
+            String line = time + " " + levelName(level) + " " + tag + ": " + message + "\n";
+            fileWriter.write(line);
+            fileBytes += line.length();
+        }
+        catch (IOException e) {
+            Log.e("AsyncLog", e.toString());
+            fileWriter = null;
+        }
+    }
+
+    private static void flush() {
+        if (fileWriter != null) {
+            try {
+                fileWriter.flush();
+            }
+            catch (IOException e) {
+                Log.e("AsyncLog", e.toString());
+            }
+        }
+    }
+
+    // control-0.log is the current file, older ones are shifted up until MAX_FILES.
+    private static void rotate() throws IOException {
+        if (fileWriter != null) {
+            fileWriter.close();
+        }
+        for (int i = MAX_FILES - 1; i > 0; i--) {
+            File older = new File(logDirectory, "control-" + (i - 1) + ".log");
+            if (older.exists() && !older.renameTo(new File(logDirectory, "control-" + i + ".log"))) {
+                Log.w("AsyncLog", "Failed to rotate " + older);
+            }
+        }
+        fileWriter = new BufferedWriter(new FileWriter(new File(logDirectory, "control-0.log")));
+        fileBytes = 0;
+    }
+
+    private static String levelName(int level) {
+        switch (level) {
+            case Log.DEBUG: return "D";
+            case Log.INFO: return "I";
+            case Log.WARN: return "W";
+            case Log.ERROR: return "E";
+            default: return "V";
+        }
+    }
+}
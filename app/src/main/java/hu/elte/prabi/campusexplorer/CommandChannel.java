@@ -1,22 +1,29 @@
 package hu.elte.prabi.campusexplorer;
 
-import android.util.Log;
-
 import im.delight.android.ddp.Meteor;
 import im.delight.android.ddp.MeteorCallback;
+import im.delight.android.ddp.SubscribeListener;
 
 import rx.Observable;
 import rx.Subscriber;
 
+import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
 class CommandChannel implements Observable.OnSubscribe<CommandChannel.Command> {
 
     private final String LOGTAG = "CommandChannel";
 
+    private static final String STATE_KEY = "\"state\"";
+
     // A Waypoint is a place on the surface of the Earth with a unique ID, that should be visited.
-    class Waypoint {
+    static class Waypoint {
         public double lat, lng;
         public int id;
         public String documentId;
@@ -33,13 +40,15 @@ class CommandChannel implements Observable.OnSubscribe<CommandChannel.Command> {
     enum CommandVerb {
         ADD,
         REMOVE,
-        CHANGE
+        CHANGE,
+        RESTORE  // restored from the mission saved on the device, live commands take precedence
     }
 
     enum CommandDataType {
         STATE,
         WAYPOINT,
         DOCUMENTID,
+        GEOFENCE,
         OTHER
     }
 
@@ -54,42 +63,137 @@ class CommandChannel implements Observable.OnSubscribe<CommandChannel.Command> {
         }
     }
 
+    // Receives stop and resume commands as soon as they arrive, ahead of queued commands.
+    interface PriorityListener {
+        void onStop(long receivedNanos);
+        void onResume();
+    }
+
     private Meteor meteorClient;
+    private RobotScope robotScope;
+    private PriorityListener priorityListener;
+
+    // DDP callbacks only hand documents over to this thread, which parses and emits them,
+    // so a large sync can't hold back the callbacks of the commands arriving after it.
+    private final ExecutorService commandThread = Executors.newSingleThreadExecutor();
 
-    public CommandChannel(Meteor meteor) {
+    public CommandChannel(Meteor meteor, RobotScope scope, PriorityListener listener) {
         meteorClient = meteor;
+        robotScope = scope;
+        priorityListener = listener;
     }
 
-    private class CommandCallbacks implements MeteorCallback {
+    public void terminate() {
+        commandThread.shutdownNow();
+    }
+
+    // Package visible, so tests can feed documents through the same callbacks as the server.
+    class CommandCallbacks implements MeteorCallback {
 
         final Subscriber<? super Command> observer;
 
+        // Documents of this robot seen so far, so removals of foreign documents can be dropped.
+        final Set<String> ownDocumentIds = new HashSet<>();
+
         public CommandCallbacks(final Subscriber<? super Command> subscriber) {
             observer = subscriber;
         }
 
         @Override
         public void onConnect(boolean signedInAutomatically) {
-            Log.i(LOGTAG, "Connected to DDP server.");
+            AsyncLog.i(LOGTAG, "Connected to DDP server.");
+            meteorClient.subscribe("directionwaypoints", robotScope.subscriptionParams(),
+                                   new SyncListener(CommandDataType.DOCUMENTID));
+            meteorClient.subscribe("robotstate", robotScope.subscriptionParams());
+            meteorClient.subscribe("geofences", robotScope.subscriptionParams(),
+                                   new SyncListener(CommandDataType.GEOFENCE));
+        }
+
+        // Once a subscription is ready, tells which documents the server has, so documents
+        // restored from the device but since deleted on the server can be dropped.
+        private class SyncListener implements SubscribeListener {
+
+            final CommandDataType dataType;
+
+            SyncListener(CommandDataType dataType) {
+                this.dataType = dataType;
+            }
+
+            @Override
+            public void onSuccess() {
+                commandThread.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (!observer.isUnsubscribed()) {
+                            observer.onNext(new Command(CommandVerb.CHANGE, dataType,
+                                                        new HashSet<>(ownDocumentIds)));
+                        }
+                    }
+                });
+            }
+
+            @Override
+            public void onError(String error, String reason, String details) {
+                AsyncLog.e(LOGTAG, "Subscription failed: {}", reason);
+            }
         }
 
         @Override
         public void onDisconnect() {
-            Log.i(LOGTAG, "Disconnected from DDP server.");
-            if (!observer.isUnsubscribed()) {
-                observer.onCompleted();
-            }
+            AsyncLog.i(LOGTAG, "Disconnected from DDP server.");
+            commandThread.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (!observer.isUnsubscribed()) {
+                        observer.onCompleted();
+                    }
+                }
+            });
         }
 
         @Override
-        public void onException(Exception e) {
-            if (!observer.isUnsubscribed()) {
-                observer.onError(e);
-            }
+        public void onException(final Exception e) {
+            commandThread.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (!observer.isUnsubscribed()) {
+                        observer.onError(e);
+                    }
+                }
+            });
         }
 
         @Override
-        public void onDataAdded(String collectionName, String documentID, String newValuesJson) {
+        public void onDataAdded(final String collectionName, final String documentID,
+                                final String newValuesJson) {
+            if (observer.isUnsubscribed()) {
+                return;
+            }
+            long receivedNanos = System.nanoTime();
+
+            // Drop documents of other robots before parsing them.
+            if (!robotScope.accepts(newValuesJson)) {
+                return;
+            }
+
+            // Act on stop and resume right away, without waiting for the commands before them.
+            if (collectionName.equals("robotstate")) {
+                if (RawJson.stringValueEquals(newValuesJson, STATE_KEY, "Stop")) {
+                    priorityListener.onStop(receivedNanos);
+                } else {
+                    priorityListener.onResume();
+                }
+            }
+
+            commandThread.execute(new Runnable() {
+                @Override
+                public void run() {
+                    emitAdded(collectionName, documentID, newValuesJson);
+                }
+            });
+        }
+
+        private void emitAdded(String collectionName, String documentID, String newValuesJson) {
             if (!observer.isUnsubscribed()) {
                 CommandVerb verb = CommandVerb.ADD;
                 CommandDataType dataType;
@@ -103,6 +207,24 @@ class CommandChannel implements Observable.OnSubscribe<CommandChannel.Command> {
                                     jObject.getDouble("lng"),
                                     jObject.getInt("id"),
                                     documentID);
+                            ownDocumentIds.add(documentID);
+                            observer.onNext(new Command(verb, dataType, data));
+                            break;
+                        }
+                        case "geofences": {
+                            dataType = CommandDataType.GEOFENCE;
+                            JSONObject jObject = new JSONObject(newValuesJson);
+                            JSONArray vertices = jObject.getJSONArray("vertices");
+                            double[] lats = new double[vertices.length()];
+                            double[] lngs = new double[vertices.length()];
+                            for (int i = 0; i < vertices.length(); i++) {
+                                JSONObject vertex = vertices.getJSONObject(i);
+                                lats[i] = vertex.getDouble("lat");
+                                lngs[i] = vertex.getDouble("lng");
+                            }
+                            data = new Geofence(documentID,
+                                    "keepout".equals(jObject.getString("kind")), lats, lngs);
+                            ownDocumentIds.add(documentID);
                             observer.onNext(new Command(verb, dataType, data));
                             break;
                         }
@@ -114,29 +236,46 @@ class CommandChannel implements Observable.OnSubscribe<CommandChannel.Command> {
                             break;
                         }
                         default:
-                            Log.d(LOGTAG, "DDP data - " + collectionName + " - was added.");
+                            AsyncLog.d(LOGTAG, "DDP data - {} - was added.", collectionName);
                             break;
                     }
                 }
                 catch (JSONException e) {
-                    Log.e(LOGTAG, e.toString());
+                    AsyncLog.e(LOGTAG, "{}", e);
                 }
             }
         }
 
         @Override
         public void onDataChanged(String collectionName, String documentID, String updatedValuesJson, String removedValuesJson) {
-            Log.w(LOGTAG, "DDP data changed without any handling.");
+            AsyncLog.w(LOGTAG, "DDP data changed without any handling.");
         }
 
         @Override
-        public void onDataRemoved(String collectionName, String documentID) {
+        public void onDataRemoved(final String collectionName, final String documentID) {
+            commandThread.execute(new Runnable() {
+                @Override
+                public void run() {
+                    emitRemoved(collectionName, documentID);
+                }
+            });
+        }
+
+        private void emitRemoved(String collectionName, String documentID) {
             if (!observer.isUnsubscribed()) {
-                if (!collectionName.equals("directionwaypoints")) {
-                    Log.e(LOGTAG, "DDP data - other than a waypoint - was deleted.");
+                CommandDataType dataType;
+                if (collectionName.equals("directionwaypoints")) {
+                    dataType = CommandDataType.DOCUMENTID;
+                } else if (collectionName.equals("geofences")) {
+                    dataType = CommandDataType.GEOFENCE;
+                } else {
+                    AsyncLog.e(LOGTAG, "DDP data - other than a waypoint or geofence - was deleted.");
+                    return;
+                }
+                if (!ownDocumentIds.remove(documentID)) {
                     return;
                 }
-                observer.onNext(new Command(CommandVerb.REMOVE, CommandDataType.DOCUMENTID, documentID));
+                observer.onNext(new Command(CommandVerb.REMOVE, dataType, documentID));
             }
         }
     }
@@ -0,0 +1,230 @@
+package hu.elte.prabi.campusexplorer;
+
+import android.support.annotation.Nullable;
+import android.util.Base64;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+
+/**
+ * The explored area of the campus, as one bit per square cell over its bounding box.
+ *
+ * The bits are packed in tiles of 8 by 8 cells, one long each, so a fully explored tile
+ * reads as -1 and the search for the nearest unexplored area skips whole tiles at a time.
+ * A square kilometre takes 500 kB at half-metre cells. The search walks the tiles outward
+ * from the robot through the ones the geofences permit, without allocating.
+ */
+class CoverageGrid {
+
+    private static final double METRES_PER_DEGREE = 111320.0;
+    private static final int TILE_SIZE = 8;
+
+    private final double minLat, minLng;
+    private final double cellSizeM;
+    private final double metresPerDegreeLng;
+    private final int cellsX, cellsY;
+    private final int tilesX, tilesY;
+
+    // Bit (y % 8) * 8 + (x % 8) of tile (y / 8) * tilesX + (x / 8) stands for cell (x, y),
+    // counted from the south-west corner. Cells outside the bounds are set.
+    private final long[] tiles;
+    private int coveredCells = 0;
+
+    // Preallocated search state.
+    private final int[] queue;
+    private final long[] queued;
+
+    public CoverageGrid(double minLat, double minLng, double maxLat, double maxLng,
+                        double cellSizeM) {
+        this.minLat = minLat;
+        this.minLng = minLng;
+        this.cellSizeM = cellSizeM;
+        metresPerDegreeLng = METRES_PER_DEGREE * Math.cos(Math.toRadians((minLat + maxLat) / 2));
+        long width = (long) Math.ceil((maxLng - minLng) * metresPerDegreeLng / cellSizeM);
+        long height = (long) Math.ceil((maxLat - minLat) * METRES_PER_DEGREE / cellSizeM);
+        long tileCount = ((width + TILE_SIZE - 1) / TILE_SIZE) * ((height + TILE_SIZE - 1) / TILE_SIZE);
+        if (width <= 0 || height <= 0 || tileCount > Integer.MAX_VALUE / 2) {
+            throw new IllegalArgumentException("Unsupported coverage grid of " + width + " x " +
+                                               height + " cells.");
+        }
+        cellsX = (int) width;
+        cellsY = (int) height;
+        tilesX = (cellsX + TILE_SIZE - 1) / TILE_SIZE;
+        tilesY = (cellsY + TILE_SIZE - 1) / TILE_SIZE;
+        tiles = new long[tilesX * tilesY];
+        queue = new int[tiles.length];
+        queued = new long[(tiles.length + 63) / 64];
+
+        // Fill the parts of the border tiles beyond the bounds.
+        for (int y = 0; y < tilesY * TILE_SIZE; y++) {
+            for (int x = y < cellsY ? cellsX : 0; x < tilesX * TILE_SIZE; x++) {
+                tiles[tileOf(x, y)] |= bitOf(x, y);
+            }
+        }
+    }
+
+    public double getMinLat() {
+        return minLat;
+    }
+
+    public double getMinLng() {
+        return minLng;
+    }
+
+    public double getCellSizeM() {
+        return cellSizeM;
+    }
+
+    public int getTilesX() {
+        return tilesX;
+    }
+
+    public int getTilesY() {
+        return tilesY;
+    }
+
+    public synchronized int getCoveredCells() {
+        return coveredCells;
+    }
+
+    // Mark the cells whose centre is within the given distance of a location as explored.
+    public synchronized void markDisc(double lat, double lng, double radiusM) {
+        double centreX = x(lng);
+        double centreY = y(lat);
+        double radius = Math.max(radiusM / cellSizeM, Math.sqrt(0.5));  // at least its own cell
+        int fromY = Math.max((int) Math.ceil(centreY - radius - 0.5), 0);
+        int toY = Math.min((int) Math.floor(centreY + radius - 0.5), cellsY - 1);
+        for (int cellY = fromY; cellY <= toY; cellY++) {
+            double dy = cellY + 0.5 - centreY;
+            double halfWidth = Math.sqrt(Math.max(radius * radius - dy * dy, 0.0));
+            int fromX = Math.max((int) Math.ceil(centreX - halfWidth - 0.5), 0);
+            int toX = Math.min((int) Math.floor(centreX + halfWidth - 0.5), cellsX - 1);
+            for (int cellX = fromX; cellX <= toX; cellX++) {
+                set(cellX, cellY);
+            }
+        }
+    }
+
+    public synchronized boolean isCovered(double lat, double lng) {
+        int cellX = (int) Math.floor(x(lng));
+        int cellY = (int) Math.floor(y(lat));
+        if (cellX < 0 || cellX >= cellsX || cellY < 0 || cellY >= cellsY) {
+            return true;
+        }
+        return (tiles[tileOf(cellX, cellY)] & bitOf(cellX, cellY)) != 0;
+    }
+
+    /**
+     * Finds the nearest unexplored cell that can be reached from a location through tiles
+     * the geofences permit. Unexplored cells the geofences don't permit are marked explored,
+     * so they aren't offered again.
+     *
+     * @return latitude and longitude of the cell's centre, or null if there is none
+     */
+    @Nullable
+    public synchronized double[] nearestFrontier(double lat, double lng, GeofenceIndex geofences) {
+        int startX = (int) Math.floor(x(lng)) / TILE_SIZE;
+        int startY = (int) Math.floor(y(lat)) / TILE_SIZE;
+        if (x(lng) < 0 || y(lat) < 0 || startX >= tilesX || startY >= tilesY) {
+            return null;
+        }
+
+        Arrays.fill(queued, 0);
+        int head = 0;
+        int tail = 0;
+        int start = startY * tilesX + startX;
+        queue[tail++] = start;
+        queued[start >>> 6] |= 1L << start;
+        while (head < tail) {
+            int tile = queue[head++];
+            int tileX = tile % tilesX;
+            int tileY = tile / tilesX;
+
+            // Offer the first unexplored cell of the tile that the geofences permit.
+            while (tiles[tile] != -1L) {
+                int bit = Long.numberOfTrailingZeros(~tiles[tile]);
+                int cellX = tileX * TILE_SIZE + bit % TILE_SIZE;
+                int cellY = tileY * TILE_SIZE + bit / TILE_SIZE;
+                double cellLat = minLat + (cellY + 0.5) * cellSizeM / METRES_PER_DEGREE;
+                double cellLng = minLng + (cellX + 0.5) * cellSizeM / metresPerDegreeLng;
+                if (geofences.permits(cellLat, cellLng)) {
+                    return new double[]{cellLat, cellLng};
+                }
+                set(cellX, cellY);
+            }
+
+            // Continue through the neighbouring tiles whose centre is permitted.
+            for (int direction = 0; direction < 4; direction++) {
+                int nextX = tileX + (direction == 0 ? 1 : direction == 1 ? -1 : 0);
+                int nextY = tileY + (direction == 2 ? 1 : direction == 3 ? -1 : 0);
+                if (nextX < 0 || nextX >= tilesX || nextY < 0 || nextY >= tilesY) {
+                    continue;
+                }
+                int next = nextY * tilesX + nextX;
+                if ((queued[next >>> 6] & (1L << next)) != 0) {
+                    continue;
+                }
+                queued[next >>> 6] |= 1L << next;
+                double centreLat = minLat + (nextY + 0.5) * TILE_SIZE * cellSizeM / METRES_PER_DEGREE;
+                double centreLng = minLng + (nextX + 0.5) * TILE_SIZE * cellSizeM / metresPerDegreeLng;
+                if (geofences.permits(centreLat, centreLng)) {
+                    queue[tail++] = next;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Encodes the grid for upload: the tiles as big-endian longs in row-major order from the
+     * south-west corner, deflated and in Base64.
+     */
+    public String encodeSnapshot() {
+        long[] snapshot;
+        synchronized (this) {
+            snapshot = tiles.clone();
+        }
+        byte[] raw = new byte[snapshot.length * 8];
+        for (int i = 0; i < snapshot.length; i++) {
+            for (int b = 0; b < 8; b++) {
+                raw[i * 8 + b] = (byte) (snapshot[i] >>> (56 - 8 * b));
+            }
+        }
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        deflater.setInput(raw);
+        deflater.finish();
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        while (!deflater.finished()) {
+            compressed.write(buffer, 0, deflater.deflate(buffer));
+        }
+        deflater.end();
+        return Base64.encodeToString(compressed.toByteArray(), Base64.NO_WRAP);
+    }
+
+    private void set(int cellX, int cellY) {
+        int tile = tileOf(cellX, cellY);
+        long bit = bitOf(cellX, cellY);
+        if ((tiles[tile] & bit) == 0) {
+            tiles[tile] |= bit;
+            coveredCells++;
+        }
+    }
+
+    private double x(double lng) {
+        return (lng - minLng) * metresPerDegreeLng / cellSizeM;
+    }
+
+    private double y(double lat) {
+        return (lat - minLat) * METRES_PER_DEGREE / cellSizeM;
+    }
+
+    private int tileOf(int cellX, int cellY) {
+        return (cellY / TILE_SIZE) * tilesX + cellX / TILE_SIZE;
+    }
+
+    private static long bitOf(int cellX, int cellY) {
+        return 1L << ((cellY % TILE_SIZE) * TILE_SIZE + cellX % TILE_SIZE);
+    }
+}
@@ -0,0 +1,78 @@
+package hu.elte.prabi.campusexplorer;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Generates goals that lead the robot to the unexplored parts of the campus.
+ *
+ * Each fix marks its accuracy disc as explored. While exploring, the robot always has one
+ * exploration goal: the nearest unexplored cell it can reach. The goal is replaced once it
+ * is visited, explored on the way or no longer permitted by the geofences. Goals are issued
+ * as waypoint commands with the highest ID, so waypoints placed by the operator come first.
+ */
+class Explorer {
+
+    private final String LOGTAG = "Explorer";
+
+    static final int EXPLORATION_WAYPOINT_ID = Integer.MAX_VALUE;
+
+    private final CoverageGrid grid;
+    private CommandChannel.Waypoint goal;
+    private int goalCount = 0;
+    private boolean complete = false;
+
+    public Explorer(CoverageGrid grid) {
+        this.grid = grid;
+    }
+
+    public CoverageGrid getGrid() {
+        return grid;
+    }
+
+    /**
+     * Takes a new fix, or a change in whether to explore or in the geofences.
+     *
+     * @return the waypoint commands replacing the exploration goal, if it changes
+     */
+    public List<CommandChannel.Command> update(double lat, double lng, float accuracyM,
+                                               boolean exploring, GeofenceIndex geofences) {
+        List<CommandChannel.Command> commands = new ArrayList<>(0);
+        grid.markDisc(lat, lng, accuracyM);
+        if (!exploring) {
+            retireGoal(commands);
+            complete = false;
+            return commands;
+        }
+
+        if (goal != null && (goal.visited || grid.isCovered(goal.lat, goal.lng) ||
+                             !geofences.permits(goal.lat, goal.lng))) {
+            retireGoal(commands);
+        }
+        if (goal == null) {
+            double[] frontier = grid.nearestFrontier(lat, lng, geofences);
+            if (frontier != null) {
+                goal = new CommandChannel.Waypoint(frontier[0], frontier[1],
+                        EXPLORATION_WAYPOINT_ID, "exploration-" + (++goalCount));
+                commands.add(new CommandChannel.Command(CommandChannel.CommandVerb.ADD,
+                                                        CommandChannel.CommandDataType.WAYPOINT,
+                                                        goal));
+                complete = false;
+            } else if (!complete) {
+                complete = true;
+                AsyncLog.i(LOGTAG, "Nothing left to explore, {} cells covered.",
+                           grid.getCoveredCells());
+            }
+        }
+        return commands;
+    }
+
+    private void retireGoal(List<CommandChannel.Command> commands) {
+        if (goal != null) {
+            commands.add(new CommandChannel.Command(CommandChannel.CommandVerb.REMOVE,
+                                                    CommandChannel.CommandDataType.DOCUMENTID,
+                                                    goal.documentId));
+            goal = null;
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package hu.elte.prabi.campusexplorer;
+
+/**
+ * A polygon on the surface of the Earth that the robot must stay inside of (keep-in) or
+ * outside of (keep-out). At campus scale latitude and longitude are treated as planar
+ * coordinates.
+ */
+class Geofence {
+
+    public final String documentId;
+    public final boolean keepOut;
+    public final double[] lats, lngs;
+    public final double minLat, maxLat, minLng, maxLng;
+
+    public Geofence(String documentId, boolean keepOut, double[] lats, double[] lngs) {
+        this.documentId = documentId;
+        this.keepOut = keepOut;
+        this.lats = lats;
+        this.lngs = lngs;
+        double minLat = Double.POSITIVE_INFINITY, maxLat = Double.NEGATIVE_INFINITY;
+        double minLng = Double.POSITIVE_INFINITY, maxLng = Double.NEGATIVE_INFINITY;
+        for (int i = 0; i < lats.length; i++) {
+            minLat = Math.min(minLat, lats[i]);
+            maxLat = Math.max(maxLat, lats[i]);
+            minLng = Math.min(minLng, lngs[i]);
+            maxLng = Math.max(maxLng, lngs[i]);
+        }
+        this.minLat = minLat;
+        this.maxLat = maxLat;
+        this.minLng = minLng;
+        this.maxLng = maxLng;
+    }
+
+    public boolean boundsContain(double lat, double lng) {
+        return lat >= minLat && lat <= maxLat && lng >= minLng && lng <= maxLng;
+    }
+
+    // Even-odd crossing test, without allocation.
+    public boolean contains(double lat, double lng) {
+        if (!boundsContain(lat, lng)) {
+            return false;
+        }
+        boolean inside = false;
+        for (int i = 0, j = lats.length - 1; i < lats.length; j = i++) {
+            if ((lats[i] > lat) != (lats[j] > lat) &&
+                lng < (lngs[j] - lngs[i]) * (lat - lats[i]) / (lats[j] - lats[i]) + lngs[i]) {
+                inside = !inside;
+            }
+        }
+        return inside;
+    }
+}
@@ -0,0 +1,186 @@
+package hu.elte.prabi.campusexplorer;
+
+import android.support.annotation.Nullable;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+
+/**
+ * An immutable set of geofences, packed into an R-tree of bounding boxes by the
+ * Sort-Tile-Recursive method. Each change of the geofences builds a new index, so checks
+ * on the control path never see a half-updated one, and checking a location only walks
+ * the boxes containing it, without allocating.
+ */
+class GeofenceIndex {
+
+    private static final int NODE_CAPACITY = 8;
+    private static final double METRES_PER_DEGREE = 111320.0;
+
+    static final GeofenceIndex EMPTY = new GeofenceIndex(Collections.<Geofence>emptyList());
+
+    // Geofences in the order the leaves refer to them.
+    private final Geofence[] fences;
+    private final boolean hasKeepIn;
+
+    // Tree nodes in flat arrays. Leaves come first, the root is the last node.
+    private final double[] nodeMinLat, nodeMaxLat, nodeMinLng, nodeMaxLng;
+    private final int[] childStart, childCount;
+    private final int leafCount;
+    private final int root;
+
+    // Preallocated traversal stack, guarded by this.
+    private final int[] stack;
+
+    public GeofenceIndex(Collection<Geofence> geofences) {
+        fences = geofences.toArray(new Geofence[geofences.size()]);
+        boolean keepIn = false;
+        for (Geofence fence : fences) {
+            keepIn |= !fence.keepOut;
+        }
+        hasKeepIn = keepIn;
+        sortTileRecursive(fences);
+
+        int maxNodes = fences.length + 1;
+        nodeMinLat = new double[maxNodes];
+        nodeMaxLat = new double[maxNodes];
+        nodeMinLng = new double[maxNodes];
+        nodeMaxLng = new double[maxNodes];
+        childStart = new int[maxNodes];
+        childCount = new int[maxNodes];
+
+        // Pack the leaves, each holding a run of neighbouring geofences.
+        int nodes = 0;
+        for (int i = 0; i < fences.length; i += NODE_CAPACITY) {
+            childStart[nodes] = i;
+            childCount[nodes] = Math.min(NODE_CAPACITY, fences.length - i);
+            nodeMinLat[nodes] = nodeMinLng[nodes] = Double.POSITIVE_INFINITY;
+            nodeMaxLat[nodes] = nodeMaxLng[nodes] = Double.NEGATIVE_INFINITY;
+            for (int f = i; f < i + childCount[nodes]; f++) {
+                nodeMinLat[nodes] = Math.min(nodeMinLat[nodes], fences[f].minLat);
+                nodeMaxLat[nodes] = Math.max(nodeMaxLat[nodes], fences[f].maxLat);
+                nodeMinLng[nodes] = Math.min(nodeMinLng[nodes], fences[f].minLng);
+                nodeMaxLng[nodes] = Math.max(nodeMaxLng[nodes], fences[f].maxLng);
+            }
+            nodes++;
+        }
+        leafCount = nodes;
+
+        // Pack each level into parents until a single root remains.
+        int levelStart = 0;
+        int levelEnd = nodes;
+        while (levelEnd - levelStart > 1) {
+            for (int i = levelStart; i < levelEnd; i += NODE_CAPACITY) {
+                childStart[nodes] = i;
+                childCount[nodes] = Math.min(NODE_CAPACITY, levelEnd - i);
+                nodeMinLat[nodes] = nodeMinLng[nodes] = Double.POSITIVE_INFINITY;
+                nodeMaxLat[nodes] = nodeMaxLng[nodes] = Double.NEGATIVE_INFINITY;
+                for (int c = i; c < i + childCount[nodes]; c++) {
+                    nodeMinLat[nodes] = Math.min(nodeMinLat[nodes], nodeMinLat[c]);
+                    nodeMaxLat[nodes] = Math.max(nodeMaxLat[nodes], nodeMaxLat[c]);
+                    nodeMinLng[nodes] = Math.min(nodeMinLng[nodes], nodeMinLng[c]);
+                    nodeMaxLng[nodes] = Math.max(nodeMaxLng[nodes], nodeMaxLng[c]);
+                }
+                nodes++;
+            }
+            levelStart = levelEnd;
+            levelEnd = nodes;
+        }
+        root = nodes - 1;
+        stack = new int[Math.max(nodes, 1)];
+    }
+
+    public int size() {
+        return fences.length;
+    }
+
+    /**
+     * Checks whether the robot may be at a location: inside some keep-in geofence, if there
+     * are any, and outside all keep-out geofences.
+     */
+    public synchronized boolean permits(double lat, double lng) {
+        if (root < 0) {
+            return true;
+        }
+        boolean insideKeepIn = false;
+        int top = 0;
+        stack[top++] = root;
+        while (top > 0) {
+            int node = stack[--top];
+            if (lat < nodeMinLat[node] || lat > nodeMaxLat[node] ||
+                lng < nodeMinLng[node] || lng > nodeMaxLng[node]) {
+                continue;
+            }
+            int end = childStart[node] + childCount[node];
+            if (node < leafCount) {
+                for (int f = childStart[node]; f < end; f++) {
+                    if (fences[f].contains(lat, lng)) {
+                        if (fences[f].keepOut) {
+                            return false;
+                        }
+                        insideKeepIn = true;
+                    }
+                }
+            } else {
+                for (int c = childStart[node]; c < end; c++) {
+                    stack[top++] = c;
+                }
+            }
+        }
+        return insideKeepIn || !hasKeepIn;
+    }
+
+    // Checks the location a given distance ahead along a bearing.
+    public boolean permitsAhead(double lat, double lng, double bearingDegrees, double distanceM) {
+        double bearing = Math.toRadians(bearingDegrees);
+        double aheadLat = lat + distanceM * Math.cos(bearing) / METRES_PER_DEGREE;
+        double aheadLng = lng + distanceM * Math.sin(bearing) /
+                                (METRES_PER_DEGREE * Math.cos(Math.toRadians(lat)));
+        return permits(aheadLat, aheadLng);
+    }
+
+    /**
+     * Finds a turn that keeps the location a given distance ahead permitted: the preferred
+     * turn if it does, otherwise the sharpest turn to the preferred side, then to the other.
+     *
+     * @param headingDegrees current heading, which turns are relative to
+     * @return the turn in degrees, or null if every turn leads out of the permitted area
+     */
+    @Nullable
+    public Integer clearTurn(double lat, double lng, double headingDegrees, int preferredTurn,
+                             int maxTurn, double distanceM) {
+        if (permitsAhead(lat, lng, headingDegrees + preferredTurn, distanceM)) {
+            return preferredTurn;
+        }
+        int side = preferredTurn < 0 ? -1 : 1;
+        if (permitsAhead(lat, lng, headingDegrees + side * maxTurn, distanceM)) {
+            return side * maxTurn;
+        }
+        if (permitsAhead(lat, lng, headingDegrees - side * maxTurn, distanceM)) {
+            return -side * maxTurn;
+        }
+        return null;
+    }
+
+    // Orders geofences so that runs of NODE_CAPACITY are spatially close to each other.
+    private static void sortTileRecursive(Geofence[] fences) {
+        int leaves = (fences.length + NODE_CAPACITY - 1) / NODE_CAPACITY;
+        int slices = (int) Math.ceil(Math.sqrt(leaves));
+        int sliceSize = Math.max(slices * NODE_CAPACITY, 1);
+        Arrays.sort(fences, new Comparator<Geofence>() {
+            @Override
+            public int compare(Geofence a, Geofence b) {
+                return Double.compare(a.minLng + a.maxLng, b.minLng + b.maxLng);
+            }
+        });
+        for (int i = 0; i < fences.length; i += sliceSize) {
+            Arrays.sort(fences, i, Math.min(i + sliceSize, fences.length), new Comparator<Geofence>() {
+                @Override
+                public int compare(Geofence a, Geofence b) {
+                    return Double.compare(a.minLat + a.maxLat, b.minLat + b.maxLat);
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package hu.elte.prabi.campusexplorer;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of latencies with power-of-two buckets in microseconds. Recording
+ * never allocates, so it can be used on the control path from any thread.
+ */
+class LatencyHistogram {
+
+    // Bucket i counts latencies below 2^i microseconds that don't fit in bucket i - 1.
+    private static final int BUCKETS = 32;
+
+    private final String name;
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sumNanos = new AtomicLong();
+    private final AtomicLong maxNanos = new AtomicLong();
+
+    public LatencyHistogram(String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public void record(long nanos) {
+        if (nanos < 0) {
+            nanos = 0;
+        }
+        long micros = nanos / 1000;
+        int bucket = Math.min(64 - Long.numberOfLeadingZeros(micros), BUCKETS - 1);
+        counts.incrementAndGet(bucket);
+        count.incrementAndGet();
+        sumNanos.addAndGet(nanos);
+        long max = maxNanos.get();
+        while (nanos > max && !maxNanos.compareAndSet(max, nanos)) {
+            max = maxNanos.get();
+        }
+    }
+
+    public long count() {
+        return count.get();
+    }
+
+    public long meanMicros() {
+        long n = count.get();
+        return n == 0 ? 0 : sumNanos.get() / n / 1000;
+    }
+
+    public long maxMicros() {
+        return maxNanos.get() / 1000;
+    }
+
+    // Upper bound of the bucket holding the given percentile, in microseconds.
+    public long percentileMicros(double percentile) {
+        long n = count.get();
+        if (n == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(n * percentile / 100.0);
+        long seen = 0;
+        for (int bucket = 0; bucket < BUCKETS; bucket++) {
+            seen += counts.get(bucket);
+            if (seen >= rank) {
+                return (1L << bucket) - 1;
+            }
+        }
+        return maxMicros();
+    }
+
+    public void reset() {
+        for (int bucket = 0; bucket < BUCKETS; bucket++) {
+            counts.set(bucket, 0);
+        }
+        count.set(0);
+        sumNanos.set(0);
+        maxNanos.set(0);
+    }
+
+    @Override
+    public String toString() {
+        return name + ": n=" + count() + ", mean=" + meanMicros() + " us, p50<=" +
+               percentileMicros(50) + " us, p99<=" + percentileMicros(99) + " us, max=" +
+               maxMicros() + " us";
+    }
+}
@@ -0,0 +1,166 @@
+package hu.elte.prabi.campusexplorer;
+
+import java.util.Arrays;
+
+/**
+ * Measures how long control takes from a location fix to the servos, stage by stage.
+ *
+ * Each control message written to the robot is followed by a probe, which the firmware
+ * answers with the times, by its own clock, the servo messages arrived and were applied and
+ * the probe arrived. The offset between the two clocks is estimated the way NTP does: from
+ * the recent probe with the shortest round trip, assuming the way there takes as long as the
+ * way back. The histograms start again whenever the firmware reports a different sampling
+ * interval, so the effect of changing it can be read off the logged numbers.
+ */
+class LatencyProbe {
+
+    private final String LOGTAG = "LatencyProbe";
+
+    static final int LATENCY_PROBE = 0x0D;  // user defined sysex command, as in the sketch
+
+    private static final int SEQUENCE_COUNT = 128;  // sequence numbers fit in 7 bits
+    private static final int REPLY_LENGTH = 11;  // 14 bit words
+    private static final int OFFSET_WINDOW = 8;
+    private static final int LOG_EVERY = 100;
+
+    // From the fix to deciding on control, from that to handing the servo messages to the
+    // serial port, from that to the firmware receiving them, and from that to the servos
+    // being set.
+    private final LatencyHistogram decide = new LatencyHistogram("Decide");
+    private final LatencyHistogram encode = new LatencyHistogram("Encode");
+    private final LatencyHistogram usbOut = new LatencyHistogram("USB out");
+    private final LatencyHistogram firmwareApply = new LatencyHistogram("Firmware apply");
+    private final LatencyHistogram roundTrip = new LatencyHistogram("Probe round trip");
+
+    // When the probes awaiting a reply were written, by sequence number, or 0.
+    private final long[] writtenNanos = new long[SEQUENCE_COUNT];
+    private int nextSequence = 0;
+
+    // Recent clock offsets, firmware minus phone, with the round trips they were measured in.
+    private final long[] offsetNanos = new long[OFFSET_WINDOW];
+    private final long[] offsetRoundTripNanos = new long[OFFSET_WINDOW];
+    private int offsetCount = 0;
+
+    // Extends the firmware's 32 bit micros(), which wraps around every 71 minutes.
+    private long lastMicros = -1;
+    private long wrapMicros = 0;
+
+    private int samplingIntervalMS = -1;
+    private long replyCount = 0;
+
+    // Forget the firmware's clock, which starts again when the robot is reconnected.
+    public synchronized void restart() {
+        Arrays.fill(writtenNanos, 0);
+        offsetCount = 0;
+        lastMicros = -1;
+        wrapMicros = 0;
+    }
+
+    /**
+     * Records that control parameters were handed to the serial port, right before the probe
+     * following them is.
+     *
+     * @param nanos SystemClock.elapsedRealtimeNanos() after writing the servo messages
+     * @return the sequence number to send the probe with
+     */
+    public synchronized int written(Robot.ControlParams ctrlp, long nanos) {
+        if (ctrlp.fixElapsedNanos > 0) {
+            decide.record(ctrlp.decidedNanos - ctrlp.fixElapsedNanos);
+            encode.record(nanos - ctrlp.decidedNanos);
+        }
+        int sequence = nextSequence;
+        nextSequence = (nextSequence + 1) % SEQUENCE_COUNT;
+        writtenNanos[sequence] = nanos;
+        return sequence;
+    }
+
+    /**
+     * Takes the firmware's reply to a probe.
+     *
+     * @param data the reply's sysex data, one 14 bit word per character
+     * @param receivedNanos SystemClock.elapsedRealtimeNanos() when the reply arrived
+     */
+    public synchronized void received(String data, long receivedNanos) {
+        if (data.length() < REPLY_LENGTH) {
+            AsyncLog.w(LOGTAG, "Ignored a short reply of {} words.", data.length());
+            return;
+        }
+        int sequence = data.charAt(0) % SEQUENCE_COUNT;
+        int interval = data.charAt(1);
+        long servoReceivedMicros = micros(data, 2);
+        long servoAppliedMicros = micros(data, 5);
+        long probeReceivedMicros = micros(data, 8);
+        long sentNanos = writtenNanos[sequence];
+        if (sentNanos == 0) {
+            return;  // sent before reconnecting
+        }
+        writtenNanos[sequence] = 0;
+
+        if (interval != samplingIntervalMS) {
+            if (samplingIntervalMS >= 0) {
+                logSummary();
+                reset();
+                AsyncLog.i(LOGTAG, "Sampling interval changed to {} ms.", interval);
+            }
+            samplingIntervalMS = interval;
+        }
+
+        // Keep the offset measured in the shortest of the recent round trips.
+        long probeNanos = unwrap(probeReceivedMicros) * 1000;
+        long roundTripNanos = receivedNanos - sentNanos;
+        roundTrip.record(roundTripNanos);
+        offsetNanos[offsetCount % OFFSET_WINDOW] = probeNanos - (sentNanos + receivedNanos) / 2;
+        offsetRoundTripNanos[offsetCount % OFFSET_WINDOW] = roundTripNanos;
+        offsetCount++;
+        int best = 0;
+        for (int i = 1; i < Math.min(offsetCount, OFFSET_WINDOW); i++) {
+            if (offsetRoundTripNanos[i] < offsetRoundTripNanos[best]) {
+                best = i;
+            }
+        }
+
+        // The servo times by the firmware's clock, counted back from the probe arriving.
+        long servoReceivedNanos = probeNanos -
+                ((probeReceivedMicros - servoReceivedMicros) & 0xFFFFFFFFL) * 1000;
+        long servoAppliedNanos = probeNanos -
+                ((probeReceivedMicros - servoAppliedMicros) & 0xFFFFFFFFL) * 1000;
+        usbOut.record(servoReceivedNanos - offsetNanos[best] - sentNanos);
+        firmwareApply.record(servoAppliedNanos - servoReceivedNanos);
+
+        if (++replyCount % LOG_EVERY == 0) {
+            logSummary();
+        }
+    }
+
+    private void reset() {
+        decide.reset();
+        encode.reset();
+        usbOut.reset();
+        firmwareApply.reset();
+        roundTrip.reset();
+    }
+
+    // The histograms are formatted right away, before they are reset or record more.
+    private void logSummary() {
+        AsyncLog.i(LOGTAG, "At a sampling interval of {} ms:", samplingIntervalMS);
+        AsyncLog.i(LOGTAG, "{}", decide.toString());
+        AsyncLog.i(LOGTAG, "{}", encode.toString());
+        AsyncLog.i(LOGTAG, "{}", usbOut.toString());
+        AsyncLog.i(LOGTAG, "{}", firmwareApply.toString());
+        AsyncLog.i(LOGTAG, "{}", roundTrip.toString());
+    }
+
+    private long unwrap(long micros) {
+        if (lastMicros >= 0 && micros < lastMicros - (1L << 31)) {
+            wrapMicros += 1L << 32;
+        }
+        lastMicros = micros;
+        return wrapMicros + micros;
+    }
+
+    // A 32 bit time as three words, least significant first.
+    private static long micros(String data, int index) {
+        return data.charAt(index) | (long) data.charAt(index + 1) << 14 |
+               (long) (data.charAt(index + 2) & 0xF) << 28;
+    }
+}
@@ -0,0 +1,180 @@
+package hu.elte.prabi.campusexplorer;
+
+import android.location.Location;
+
+import rx.Observable;
+import rx.Subscriber;
+
+/**
+ * Cleans the raw location stream before it is shared by its subscribers.
+ *
+ * Fixes with insufficient accuracy are replaced by null, meaning no usable location, as
+ * the location service does when it gets suspended. Fixes repeating the previous timestamp
+ * are dropped, and so are jumps that would need the robot to move faster than it can, until
+ * several consecutive outliers agree on the new place. The remaining fixes are smoothed by a
+ * median over the last few fixes followed by an exponential moving average. Work and memory
+ * per fix are constant.
+ *
+ * The filter keeps state, so it should be lifted onto a stream with a single subscriber,
+ * e.g. right before publish().
+ */
+class LocationFilter implements Observable.Operator<Location, Location> {
+
+    private final String LOGTAG = "LocationFilter";
+
+    private static final double METRES_PER_DEGREE = 111320.0;
+    private static final int WINDOW = 3;
+    private static final int MAX_CONSECUTIVE_OUTLIERS = 3;
+
+    private final float maxAccuracyM;
+    private final float maxSpeedMps;
+    private final double smoothing;
+
+    // Ring of the last accepted raw fixes.
+    private final double[] latRing = new double[WINDOW];
+    private final double[] lngRing = new double[WINDOW];
+    private final double[] sortScratch = new double[WINDOW];
+    private int ringSize = 0;
+    private int ringNext = 0;
+
+    private long lastTimeNanos = -1;
+    private double lastLat, lastLng;
+    private float lastAccuracy;
+    private double smoothLat, smoothLng;
+
+    // The latest rejected fix, and how many rejected fixes in a row agree with it.
+    private long outlierTimeNanos;
+    private double outlierLat, outlierLng;
+    private float outlierAccuracy;
+    private int consecutiveOutliers = 0;
+
+    /**
+     * @param maxAccuracyM fixes reporting worse accuracy are considered unusable
+     * @param maxSpeedMps fastest plausible movement of the robot
+     * @param smoothing weight of the newest median in the moving average, in (0, 1]
+     */
+    public LocationFilter(float maxAccuracyM, float maxSpeedMps, double smoothing) {
+        this.maxAccuracyM = maxAccuracyM;
+        this.maxSpeedMps = maxSpeedMps;
+        this.smoothing = smoothing;
+    }
+
+    @Override
+    public Subscriber<? super Location> call(final Subscriber<? super Location> child) {
+        return new Subscriber<Location>(child) {
+            @Override
+            public void onCompleted() {
+                child.onCompleted();
+            }
+
+            @Override
+            public void onError(Throwable e) {
+                child.onError(e);
+            }
+
+            @Override
+            public void onNext(Location location) {
+                if (location == null || !location.hasAccuracy() ||
+                    location.getAccuracy() > maxAccuracyM) {
+                    child.onNext(null);
+                    return;
+                }
+                if (accept(location.getElapsedRealtimeNanos(), location.getLatitude(),
+                           location.getLongitude(), location.getAccuracy())) {
+                    Location smoothed = new Location(location);
+                    smoothed.setLatitude(smoothLat);
+                    smoothed.setLongitude(smoothLng);
+                    child.onNext(smoothed);
+                }
+            }
+        };
+    }
+
+    // Whether a fix is passed on, after updating the smoothed position with it. Package
+    // visible, so tests can feed fixes without Android's Location.
+    boolean accept(long timeNanos, double lat, double lng, float accuracy) {
+        if (lastTimeNanos >= 0) {
+            // The same fix delivered again.
+            if (timeNanos == lastTimeNanos ||
+                (consecutiveOutliers > 0 && timeNanos == outlierTimeNanos)) {
+                return false;
+            }
+
+            // Reject jumps faster than the robot can move.
+            if (!isReachable(lastTimeNanos, lastLat, lastLng, lastAccuracy,
+                             timeNanos, lat, lng, accuracy)) {
+                if (consecutiveOutliers > 0 &&
+                    isReachable(outlierTimeNanos, outlierLat, outlierLng, outlierAccuracy,
+                                timeNanos, lat, lng, accuracy)) {
+                    consecutiveOutliers++;
+                } else {
+                    consecutiveOutliers = 1;
+                }
+                outlierTimeNanos = timeNanos;
+                outlierLat = lat;
+                outlierLng = lng;
+                outlierAccuracy = accuracy;
+                if (consecutiveOutliers < MAX_CONSECUTIVE_OUTLIERS) {
+                    AsyncLog.d(LOGTAG, "Rejected location jump.");
+                    return false;
+                }
+                // Fixes keep agreeing on the new place, so the robot has really moved there.
+                AsyncLog.w(LOGTAG, "Location jump persisted, restarting filter.");
+                ringSize = 0;
+                ringNext = 0;
+            }
+        }
+        consecutiveOutliers = 0;
+        lastTimeNanos = timeNanos;
+        lastLat = lat;
+        lastLng = lng;
+        lastAccuracy = accuracy;
+
+        latRing[ringNext] = lat;
+        lngRing[ringNext] = lng;
+        ringNext = (ringNext + 1) % WINDOW;
+        if (ringSize < WINDOW) {
+            ringSize++;
+        }
+
+        double medianLat = median(latRing);
+        double medianLng = median(lngRing);
+        if (ringSize == 1) {
+            smoothLat = medianLat;
+            smoothLng = medianLng;
+        } else {
+            smoothLat += smoothing * (medianLat - smoothLat);
+            smoothLng += smoothing * (medianLng - smoothLng);
+        }
+        return true;
+    }
+
+    private double median(double[] ring) {
+        // The ring is filled from index 0, so its first ringSize slots are the valid ones.
+        for (int i = 0; i < ringSize; i++) {
+            double value = ring[i];
+            int j = i - 1;
+            while (j >= 0 && sortScratch[j] > value) {
+                sortScratch[j + 1] = sortScratch[j];
+                j--;
+            }
+            sortScratch[j + 1] = value;
+        }
+        return sortScratch[ringSize / 2];
+    }
+
+    // Whether the robot can get from one fix to another, allowing for both fixes' error.
+    private boolean isReachable(long fromNanos, double fromLat, double fromLng, float fromAccuracy,
+                                long toNanos, double toLat, double toLng, float toAccuracy) {
+        double seconds = Math.max((toNanos - fromNanos) / 1e9, 0.001);
+        double reachable = maxSpeedMps * seconds + fromAccuracy + toAccuracy;
+        return distanceM(fromLat, fromLng, toLat, toLng) <= reachable;
+    }
+
+    // Equirectangular approximation, accurate enough for consecutive fixes.
+    private static double distanceM(double lat1, double lng1, double lat2, double lng2) {
+        double dy = (lat2 - lat1) * METRES_PER_DEGREE;
+        double dx = (lng2 - lng1) * METRES_PER_DEGREE * Math.cos(Math.toRadians((lat1 + lat2) / 2));
+        return Math.sqrt(dx * dx + dy * dy);
+    }
+}
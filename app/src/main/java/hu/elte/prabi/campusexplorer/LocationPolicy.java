@@ -0,0 +1,119 @@
+package hu.elte.prabi.campusexplorer;
+
+/**
+ * Chooses how often and how precisely location should be sampled, based on what the robot
+ * is currently doing. Paused or idle robots sample slowly to save power; driving robots
+ * sample fast enough that the distance covered between a fix and the servo reacting to it
+ * stays within a fixed track error, and fastest near waypoints and in sharp turns.
+ */
+class LocationPolicy {
+
+    static final class Setting {
+        public final int intervalMS;
+        public final int fastestIntervalMS;
+        public final boolean highAccuracy;
+
+        public Setting(int intervalMS, int fastestIntervalMS, boolean highAccuracy) {
+            this.intervalMS = intervalMS;
+            this.fastestIntervalMS = fastestIntervalMS;
+            this.highAccuracy = highAccuracy;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Setting)) {
+                return false;
+            }
+            Setting other = (Setting) o;
+            return intervalMS == other.intervalMS &&
+                   fastestIntervalMS == other.fastestIntervalMS &&
+                   highAccuracy == other.highAccuracy;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (31 * intervalMS + fastestIntervalMS) + (highAccuracy ? 1 : 0);
+        }
+
+        @Override
+        public String toString() {
+            return intervalMS + "/" + fastestIntervalMS + " ms" + (highAccuracy ? ", high accuracy" : "");
+        }
+    }
+
+    // Low power sampling while there is nothing to drive to.
+    static final Setting IDLE = new Setting(10000, 5000, false);
+
+    // Sampling used before anything is known about the robot's state.
+    static final Setting DEFAULT = new Setting(1000, 250, true);
+
+    // Intervals are quantised, so small changes in speed don't keep re-requesting updates.
+    private static final int[] DRIVING_INTERVALS_MS = new int[]{250, 500, 1000, 2000};
+
+    private static final int FASTEST_INTERVAL_MS = 250;
+
+    private final float arrivalRadiusM;
+    private final float approachRadiusM;
+    private final float maxTrackErrorM;
+    private final int sharpTurnDegrees;
+    private final int fixesBeforeArrival;
+    private final long maxDrivingIntervalMS;
+
+    /**
+     * @param maxDrivingIntervalMS longest interval while driving, well below the time after
+     *                             which the robot is stopped for lack of control messages
+     */
+    public LocationPolicy(float arrivalRadiusM, float approachRadiusM, float maxTrackErrorM,
+                          int sharpTurnDegrees, int fixesBeforeArrival, long maxDrivingIntervalMS) {
+        this.arrivalRadiusM = arrivalRadiusM;
+        this.approachRadiusM = approachRadiusM;
+        this.maxTrackErrorM = maxTrackErrorM;
+        this.sharpTurnDegrees = sharpTurnDegrees;
+        this.fixesBeforeArrival = fixesBeforeArrival;
+        this.maxDrivingIntervalMS = maxDrivingIntervalMS;
+    }
+
+    /**
+     * @param distanceToGoalM distance to the next waypoint, ignored without a goal, or a
+     *                        negative value if there is no fix accurate enough to tell
+     * @param speedMps ground speed, or a negative value if it is unknown
+     * @param turning the last steering output in degrees
+     * @param latencyBudgetMS time from a fix being taken to the servos acting on it
+     */
+    public Setting select(boolean paused, boolean hasGoal, float distanceToGoalM,
+                          float speedMps, int turning, long latencyBudgetMS) {
+        if (paused || !hasGoal) {
+            return IDLE;
+        }
+        if (distanceToGoalM < 0.0f) {
+            // Low power fixes are too coarse to drive by, so ask for accurate ones.
+            return DEFAULT;
+        }
+        if (Math.abs(turning) >= sharpTurnDegrees || distanceToGoalM <= approachRadiusM) {
+            return driving(DRIVING_INTERVALS_MS[0]);
+        }
+        if (speedMps <= 0.1f) {
+            return DEFAULT;
+        }
+
+        // Distance driven on stale location data must stay within the track error.
+        long budgetMS = (long) (1000.0f * maxTrackErrorM / speedMps) - latencyBudgetMS;
+
+        // Several fixes must land between the approach zone and the waypoint.
+        float toArrivalM = Math.max(distanceToGoalM - arrivalRadiusM, 0.0f);
+        budgetMS = Math.min(budgetMS, (long) (1000.0f * toArrivalM / speedMps / fixesBeforeArrival));
+        budgetMS = Math.min(budgetMS, maxDrivingIntervalMS);
+
+        int interval = DRIVING_INTERVALS_MS[0];
+        for (int candidate : DRIVING_INTERVALS_MS) {
+            if (candidate <= budgetMS) {
+                interval = candidate;
+            }
+        }
+        return driving(interval);
+    }
+
+    private static Setting driving(int intervalMS) {
+        return new Setting(intervalMS, Math.min(intervalMS, FASTEST_INTERVAL_MS), true);
+    }
+}
@@ -6,7 +6,6 @@ import android.location.Location;
 import android.os.Bundle;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
-import android.util.Log;
 
 import com.google.android.gms.common.ConnectionResult;
 import com.google.android.gms.common.api.GoogleApiClient;
@@ -66,7 +65,7 @@ class LocationService implements Observable.OnSubscribe<Location> {
                         try {
                             status.startResolutionForResult(activity, 0x1);
                         } catch (IntentSender.SendIntentException e) {
-                            Log.e(LOGTAG, e.toString());
+                            AsyncLog.e(LOGTAG, "{}", e);
                         }
                     }
                 }
@@ -78,7 +77,7 @@ class LocationService implements Observable.OnSubscribe<Location> {
 
         @Override
         public void onConnectionSuspended(int i) {
-            Log.w(LOGTAG, "Location service has suspended.");
+            AsyncLog.w(LOGTAG, "Location service has suspended.");
             if (!observer.isUnsubscribed()) {
                 observer.onNext(null);
             }
@@ -120,6 +119,23 @@ class LocationService implements Observable.OnSubscribe<Location> {
         gApiClient.connect();
     }
 
+    // Replace the location request, e.g. when the robot's sampling needs change.
+    public void applySetting(LocationPolicy.Setting setting) {
+        locationRequest = new LocationRequest();
+        locationRequest.setInterval(setting.intervalMS);
+        locationRequest.setFastestInterval(setting.fastestIntervalMS);
+        locationRequest.setPriority(setting.highAccuracy ?
+                LocationRequest.PRIORITY_HIGH_ACCURACY :
+                LocationRequest.PRIORITY_BALANCED_POWER_ACCURACY);
+        if (gApiClient != null && gApiClient.isConnected()) {
+            // Requesting updates again for the same listener replaces its previous request.
+            //noinspection MissingPermission
+            LocationServices.FusedLocationApi.requestLocationUpdates(gApiClient, locationRequest,
+                                                                     locationCallbacks);
+        }
+        AsyncLog.i(LOGTAG, "Location sampling set to {}", setting);
+    }
+
     public void terminate() {
         LocationServices.FusedLocationApi.removeLocationUpdates(gApiClient, locationCallbacks);
         gApiClient.disconnect();
@@ -6,40 +6,82 @@ import android.content.pm.PackageManager;
 import android.hardware.usb.UsbManager;
 import android.location.Location;
 import android.os.Bundle;
+import android.os.SystemClock;
+import android.provider.Settings;
 import android.support.annotation.NonNull;
 import android.support.v4.app.ActivityCompat;
 import android.support.v4.content.ContextCompat;
 import android.support.v7.app.AppCompatActivity;
-import android.util.Log;
 
-import java.util.LinkedList;
+import java.io.File;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.TimeUnit;
 
 import im.delight.android.ddp.Meteor;
 
 import rx.Observable;
 import rx.Subscriber;
+import rx.android.schedulers.AndroidSchedulers;
+import rx.functions.Action0;
 import rx.functions.Action1;
 import rx.functions.Func1;
 import rx.functions.Func2;
 import rx.functions.Func3;
+import rx.functions.Func4;
 import rx.observables.ConnectableObservable;
+import rx.schedulers.Schedulers;
 import rx.schedulers.TimeInterval;
 
 public class MainActivity extends AppCompatActivity {
 
     private final String LOGTAG = "MainActivity";
 
+    // Speed while chasing a waypoint and the largest steering angle, in servo degrees.
+    static final int CRUISE_SPEED = 30;
+    static final int MAX_TURNING = 30;
+
+    // Speed near the border of the permitted area, and how far ahead the border is looked for.
+    static final int BORDER_SPEED = 10;
+    static final double BORDER_LOOKAHEAD_M = 5.0;
+
+    // The robot is stopped when control messages are further apart than this. Location is
+    // sampled at least twice as often while driving, so a late fix doesn't stop it.
+    static final long CONTROL_TIMEOUT_MS = 2000;
+
+    // Geofence changes arriving closer together than this are indexed together.
+    private static final long GEOFENCE_BATCH_MS = 50;
+
+    // Size of the cells the explored area is tracked in, and how often it is uploaded.
+    static final double COVERAGE_CELL_M = 0.5;
+    static final long COVERAGE_UPLOAD_S = 30;
+
     Meteor meteor;
+    RobotScope robotScope;
+    CommandChannel commandChannel;
     LocationService locationService;
     UsbConnectionHandler usbHandler;
+    MissionStore missionStore;
+    StartupTimeline startup;
+    Explorer explorer;
+
+    // Sampling policy and its input: the smoothed delay from taking a fix to steering by it.
+    LocationPolicy locationPolicy = new LocationPolicy(10.0f, 15.0f, 3.0f, 20, 3,
+                                                       CONTROL_TIMEOUT_MS / 2);
+    volatile long fixToServoLatencyMS = 0;
 
     @Override
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
+        startup = new StartupTimeline();
         setContentView(R.layout.activity_main);
 
+        // Keep logs of field runs on the device, written off the control path.
+        File logDirectory = getExternalFilesDir("logs");
+        AsyncLog.start(logDirectory != null ? logDirectory : new File(getFilesDir(), "logs"));
+
         // Ensure fine location permission is granted.
         if (ContextCompat.checkSelfPermission(this, Manifest.permission.ACCESS_FINE_LOCATION)
                 != PackageManager.PERMISSION_GRANTED) {
@@ -47,25 +89,100 @@ public class MainActivity extends AppCompatActivity {
                     new String[]{Manifest.permission.ACCESS_FINE_LOCATION}, 0);
         }
 
+        // Identify this robot within the fleet, falling back to the device's own ID.
+        String robotId = getString(R.string.robot_id);
+        if (robotId.isEmpty()) {
+            robotId = Settings.Secure.getString(getContentResolver(), Settings.Secure.ANDROID_ID);
+        }
+        robotScope = new RobotScope(robotId);
+        AsyncLog.i(LOGTAG, "Operating as robot {}", robotId);
+
+        // Set up USB connection management. The robot is looked for and opened in the background.
+        usbHandler = new UsbConnectionHandler(this, startup);
+        IntentFilter filter = new IntentFilter();
+        filter.addAction(UsbConnectionHandler.USB_PERMISSION);
+        filter.addAction(UsbManager.ACTION_USB_DEVICE_ATTACHED);
+        filter.addAction(UsbManager.ACTION_USB_DEVICE_DETACHED);
+        registerReceiver(usbHandler, filter);
+
+        // Track the explored area of the campus, if its bounds are configured.
+        String[] bounds = getString(R.string.campus_bounds).split(",");
+        if (bounds.length == 4) {
+            explorer = new Explorer(new CoverageGrid(Double.parseDouble(bounds[0].trim()),
+                    Double.parseDouble(bounds[1].trim()), Double.parseDouble(bounds[2].trim()),
+                    Double.parseDouble(bounds[3].trim()), COVERAGE_CELL_M));
+        } else {
+            AsyncLog.w(LOGTAG, "Campus bounds are not set, exploration is disabled.");
+        }
+
         // Define user command source.
         meteor = new Meteor(this, getString(R.string.ddp_uri));
+        commandChannel = new CommandChannel(meteor, robotScope, new CommandChannel.PriorityListener() {
+            @Override
+            public void onStop(long receivedNanos) {
+                usbHandler.emergencyStop(receivedNanos);
+            }
+
+            @Override
+            public void onResume() {
+                usbHandler.resume();
+            }
+        });
         ConnectableObservable<CommandChannel.Command> commandSource = Observable
-                .create(new CommandChannel(meteor))
+                .create(commandChannel)
+                .doOnNext(new Action1<CommandChannel.Command>() {
+                    @Override
+                    public void call(CommandChannel.Command command) {
+                        if (command.verb.equals(CommandChannel.CommandVerb.CHANGE)) {
+                            startup.reach(StartupTimeline.Stage.DDP_SYNCED);
+                        }
+                    }
+                })
                 .publish();
 
-        // Define location data source.
+        // Define location data source, cleaned once for the subscribers driving the robot.
         locationService = new LocationService(this, 1000, 250);
-        ConnectableObservable<Location> locationSource = Observable
+        ConnectableObservable<Location> rawLocationSource = Observable
                 .create(locationService)
                 .publish();
+        ConnectableObservable<Location> locationSource = rawLocationSource
+                .lift(new LocationFilter(10.0f, 5.0f, 0.6))
+                .doOnNext(new Action1<Location>() {
+                    @Override
+                    public void call(Location location) {
+                        if (location != null) {
+                            startup.reach(StartupTimeline.Stage.LOCATION_FIXED);
+                        }
+                    }
+                })
+                .publish();
+
+        // Start connecting to the server and warming up location right away. Both deliver
+        // their callbacks on the UI thread, so nothing is emitted before the wiring below.
+        commandSource.connect();
+        locationSource.connect();
+        rawLocationSource.connect();
+
+        // Define the source of the mission saved on the device, loaded in the background.
+        missionStore = new MissionStore(new File(getFilesDir(), "mission.json"), robotId);
+        ConnectableObservable<CommandChannel.Command> missionSource = Observable
+                .create(missionStore)
+                .subscribeOn(Schedulers.io())
+                .doOnCompleted(new Action0() {
+                    @Override
+                    public void call() {
+                        startup.reach(StartupTimeline.Stage.MISSION_LOADED);
+                    }
+                })
+                .publish();
+        Observable<CommandChannel.Command> commands = commandSource.mergeWith(missionSource);
 
         // Create commands from location changes.
         Observable<CommandChannel.Command> locationCommands = locationSource
                 .filter(new Func1<Location, Boolean>() {
                     @Override
                     public Boolean call(Location location) {
-                        return location != null &&
-                               location.hasAccuracy() && location.getAccuracy() <= 10.0f;
+                        return location != null;
                     }
                 })
                 .map(new Func1<Location, CommandChannel.Command>() {
@@ -77,115 +194,224 @@ public class MainActivity extends AppCompatActivity {
                     }
                 });
 
+        // Follow the robot's state, by the saved state until the server's arrives.
+        Func1<CommandChannel.Command, Boolean> isState = new Func1<CommandChannel.Command, Boolean>() {
+            @Override
+            public Boolean call(CommandChannel.Command command) {
+                return command.dataType.equals(CommandChannel.CommandDataType.STATE);
+            }
+        };
+        Observable<CommandChannel.Command> liveStates = commandSource
+                .filter(isState)
+                .doOnNext(new Action1<CommandChannel.Command>() {
+                    @Override
+                    public void call(CommandChannel.Command command) {
+                        missionStore.saveState((String) command.data);
+                    }
+                })
+                .share();
+        Observable<String> stateSource = missionSource
+                .filter(isState)
+                .takeUntil(liveStates)
+                .mergeWith(liveStates)
+                .map(new Func1<CommandChannel.Command, String>() {
+                    @Override
+                    public String call(CommandChannel.Command command) {
+                        return (String) command.data;
+                }});
+
+        // Indicate whether the robot is paused.
+        Observable<Boolean> pausedSource = stateSource
+                .map(new Func1<String, Boolean>() {
+                    @Override
+                    public Boolean call(String state) {
+                        return "Stop".equals(state);
+                }});
+
+        // Indicate whether the robot should explore the campus on its own.
+        Observable<Boolean> exploringSource = stateSource
+                .map(new Func1<String, Boolean>() {
+                    @Override
+                    public Boolean call(String state) {
+                        return "Explore".equals(state);
+                }});
+
+        // Maintain the geofences the robot must respect.
+        Observable<GeofenceIndex> geofenceSource = commands
+                .filter(new Func1<CommandChannel.Command, Boolean>() {
+                    @Override
+                    public Boolean call(CommandChannel.Command command) {
+                        return command.dataType.equals(CommandChannel.CommandDataType.GEOFENCE);
+                // Take the commands in bursts, e.g. a whole sync, to index them only once.
+                }}).publish(new Func1<Observable<CommandChannel.Command>,
+                                      Observable<List<CommandChannel.Command>>>() {
+                    @Override
+                    public Observable<List<CommandChannel.Command>> call(
+                            Observable<CommandChannel.Command> fenceCommands) {
+                        return fenceCommands.buffer(fenceCommands.debounce(
+                                GEOFENCE_BATCH_MS, TimeUnit.MILLISECONDS));
+                // The empty seed is emitted right away, so control doesn't wait for geofences.
+                }}).scan(new HashMap<String, Geofence>(),
+                         new Func2<Map<String, Geofence>, List<CommandChannel.Command>,
+                                   Map<String, Geofence>>() {
+                    @Override
+                    public Map<String, Geofence> call(Map<String, Geofence> geofences,
+                                                      List<CommandChannel.Command> batch) {
+                        for (CommandChannel.Command command : batch) {
+                            if (command.verb.equals(CommandChannel.CommandVerb.ADD)) {
+                                Geofence geofence = (Geofence) command.data;
+                                geofences.put(geofence.documentId, geofence);
+                            } else if (command.verb.equals(CommandChannel.CommandVerb.RESTORE)) {
+                                Geofence geofence = (Geofence) command.data;
+                                if (!geofences.containsKey(geofence.documentId)) {
+                                    geofences.put(geofence.documentId, geofence);
+                                }
+                            } else if (command.verb.equals(CommandChannel.CommandVerb.REMOVE)) {
+                                geofences.remove((String) command.data);
+                            } else {
+                                // The server has synced, drop restored geofences it no longer has.
+                                geofences.keySet().retainAll((Set<?>) command.data);
+                            }
+                        }
+                        if (!batch.isEmpty()) {
+                            missionStore.saveGeofences(geofences.values());
+                        }
+                        return geofences;
+                // Index a snapshot of the current geofences.
+                }}).map(new Func1<Map<String, Geofence>, GeofenceIndex>() {
+                    @Override
+                    public GeofenceIndex call(Map<String, Geofence> geofences) {
+                        return geofences.isEmpty() ? GeofenceIndex.EMPTY :
+                                                     new GeofenceIndex(geofences.values());
+                // Shared by exploration and control, which subscribes after the first index.
+                }}).replay(1).refCount();
+
+        // Generate goals toward the nearest unexplored area while exploring.
+        Observable<CommandChannel.Command> explorationCommands = Observable.empty();
+        if (explorer != null) {
+            explorationCommands = Observable
+                    .combineLatest(locationCommands.observeOn(Schedulers.computation()),
+                                   exploringSource, geofenceSource,
+                    new Func3<CommandChannel.Command, Boolean, GeofenceIndex,
+                              List<CommandChannel.Command>>() {
+                        @Override
+                        public List<CommandChannel.Command> call(CommandChannel.Command command,
+                                                                 Boolean isExploring,
+                                                                 GeofenceIndex geofences) {
+                            Location location = (Location) command.data;
+                            return explorer.update(location.getLatitude(), location.getLongitude(),
+                                    location.getAccuracy(), isExploring, geofences);
+                    }}).concatMap(new Func1<List<CommandChannel.Command>,
+                                            Observable<CommandChannel.Command>>() {
+                        @Override
+                        public Observable<CommandChannel.Command> call(
+                                List<CommandChannel.Command> goalCommands) {
+                            return Observable.from(goalCommands);
+                    }});
+        }
+
         // Select the next unvisited waypoint to reach.
-        Observable<CommandChannel.Waypoint> goalSource = commandSource
+        Observable<CommandChannel.Waypoint> goalSource = commands
                 // Select applicable commands from stream.
                 .filter(new Func1<CommandChannel.Command, Boolean>() {
                     @Override
                     public Boolean call(CommandChannel.Command command) {
                         return command.dataType.equals(CommandChannel.CommandDataType.WAYPOINT) ||
                                command.dataType.equals(CommandChannel.CommandDataType.DOCUMENTID);
-                // Add location commands as they appear.
-            }}).mergeWith(locationCommands)
-                // Maintain a list of waypoints to visit.
-                .scan(new LinkedList<CommandChannel.Waypoint>(),
-                     new Func2<List<CommandChannel.Waypoint>,
-                                    CommandChannel.Command,
-                                    List<CommandChannel.Waypoint>>() {
+                // Add location and exploration commands as they appear.
+            }}).mergeWith(locationCommands).mergeWith(explorationCommands)
+                // Maintain the route of waypoints to visit. Without a fix for as long as the
+                // control timeout, the robot has been stopped, so fixes across it aren't joined.
+                .scan(new Route(CONTROL_TIMEOUT_MS),
+                     new Func2<Route, CommandChannel.Command, Route>() {
                     @Override
-                    public List<CommandChannel.Waypoint> call(List<CommandChannel.Waypoint> waypoints,
-                                                              CommandChannel.Command command) {
-                        if (command.verb.equals(CommandChannel.CommandVerb.ADD)) {
+                    public Route call(Route route, CommandChannel.Command command) {
+                        if (command.dataType.equals(CommandChannel.CommandDataType.OTHER)) {
+                            Location loc = (Location) command.data;
+                            List<CommandChannel.Waypoint> visited = route.advance(loc.getLatitude(),
+                                    loc.getLongitude(), loc.getAccuracy(),
+                                    loc.getElapsedRealtimeNanos());
+                            for (CommandChannel.Waypoint wp : visited) {
+                                AsyncLog.i(LOGTAG, "Sucessfully visited {}", wp.documentId);
+                            }
+                            if (visited.isEmpty()) {
+                                return route;
+                            }
+                        }
+                        else if (command.verb.equals(CommandChannel.CommandVerb.ADD)) {
                             CommandChannel.Waypoint wp = (CommandChannel.Waypoint) command.data;
-                            waypoints.add(wp.id, wp);
-                            Log.d(LOGTAG, "Added waypoint " + wp.documentId);
+                            route.add(wp);
+                            AsyncLog.d(LOGTAG, "Added waypoint {}", wp.documentId);
+                        }
+                        else if (command.verb.equals(CommandChannel.CommandVerb.RESTORE)) {
+                            CommandChannel.Waypoint wp = (CommandChannel.Waypoint) command.data;
+                            route.restore(wp);
+                            AsyncLog.d(LOGTAG, "Restored waypoint {}", wp.documentId);
                         }
                         else if (command.verb.equals(CommandChannel.CommandVerb.REMOVE)) {
                             String documentID = (String) command.data;
-                            CommandChannel.Waypoint toRemove = null;
-                            for (CommandChannel.Waypoint wp : waypoints) {
-                                if (wp.documentId.equals(documentID)) {
-                                    toRemove = wp;
-                                    break;
-                                }
+                            if (route.remove(documentID) != null) {
+                                AsyncLog.d(LOGTAG, "Removed waypoint {}", documentID);
+                            } else {
+                                AsyncLog.w(LOGTAG, "Tried to remove unknown waypoint {}", documentID);
                             }
-                            assert toRemove != null;
-                            Log.d(LOGTAG, "Removed waypoint " + toRemove.documentId);
-                            waypoints.remove(toRemove);
                         }
                         else {
-                            Location loc = (Location) command.data;
-                            float accuracy = loc.getAccuracy();
-                            float[] dist = new float[]{0.0f};
-                            for (CommandChannel.Waypoint wp : waypoints) {
-                                if (wp.visited) continue;
-                                Location.distanceBetween(loc.getLatitude(), loc.getLongitude(),
-                                        wp.lat, wp.lng, dist);
-                                if (dist[0] < accuracy) {
-                                    wp.visited = true;
-                                    Log.i(LOGTAG, "Sucessfully visited " + wp.documentId);
-                                }
+                            // The server has synced, drop restored waypoints it no longer has.
+                            @SuppressWarnings("unchecked")
+                            Set<String> documentIDs = (Set<String>) command.data;
+                            for (CommandChannel.Waypoint wp : route.retain(documentIDs)) {
+                                AsyncLog.d(LOGTAG, "Dropped stale waypoint {}", wp.documentId);
                             }
                         }
-                        return waypoints;
+                        missionStore.saveRoute(route);
+                        return route;
                 // Select the next unvisited waypoint.
-            }}).map(new Func1<List<CommandChannel.Waypoint>, CommandChannel.Waypoint>() {
-                    @Override
-                    public CommandChannel.Waypoint call(List<CommandChannel.Waypoint> waypoints) {
-                        for (CommandChannel.Waypoint wp : waypoints) {
-                            if (!wp.visited) {
-                                return wp;
-                            }
-                        }
-                        return null;
-            }}).distinct().doOnNext(new Action1<CommandChannel.Waypoint>() {
+            }}).compose(Route.goals()).doOnNext(new Action1<CommandChannel.Waypoint>() {
                     @Override
                     public void call(CommandChannel.Waypoint waypoint) {
                         if (waypoint != null) {
-                            Log.i(LOGTAG, "New goal to reach: " + waypoint.documentId);
+                            AsyncLog.i(LOGTAG, "New goal to reach: {}", waypoint.documentId);
                         }
-            }});
+            }}).share();
 
-        // Indicate whether the robot is paused.
-        Observable<Boolean> pausedSource = commandSource
-                .filter(new Func1<CommandChannel.Command, Boolean>() {
-                    @Override
-                    public Boolean call(CommandChannel.Command command) {
-                        return command.dataType.equals(CommandChannel.CommandDataType.STATE);
-                }}).map(new Func1<CommandChannel.Command, Boolean>() {
-                    @Override
-                    public Boolean call(CommandChannel.Command command) {
-                        return "Stop".equals(command.data);
-                }});
 
         // Compute control parameters of the robot based on the inputs above.
         ConnectableObservable<Robot.ControlParams> robotControl = Observable
-                .combineLatest(locationSource, goalSource, pausedSource,
-                new Func3<Location, CommandChannel.Waypoint, Boolean, Robot.ControlParams>() {
+                .combineLatest(locationSource, goalSource, pausedSource, geofenceSource,
+                new Func4<Location, CommandChannel.Waypoint, Boolean, GeofenceIndex, Robot.ControlParams>() {
                     @Override
                     public Robot.ControlParams call(Location location,
                                                     CommandChannel.Waypoint waypoint,
-                                                    Boolean isPaused) {
+                                                    Boolean isPaused,
+                                                    GeofenceIndex geofences) {
+                        // Don't drive before the mission is loaded and the robot is connected.
+                        if (!startup.isReady()) {
+                            AsyncLog.d(LOGTAG, "Stopped, because startup hasn't finished yet.");
+                            return new Robot.ControlParams(0, 0);
+                        }
+
                         // If the robot is paused, stop immediately.
                         if (isPaused) {
-                            Log.d(LOGTAG, "Stopped, because the robot is paused.");
+                            AsyncLog.d(LOGTAG, "Stopped, because the robot is paused.");
                             return new Robot.ControlParams(0, 0);
                         }
 
                         // If there is no waypoint to reach, just rest.
                         if (waypoint == null) {
-                            Log.d(LOGTAG, "Stopped, because there's no unvisited waypoints to reach.");
+                            AsyncLog.d(LOGTAG, "Stopped, because there's no unvisited waypoints to reach.");
                             return new Robot.ControlParams(0, 0);
                         }
 
                         // If location data is insufficient, wait for better GPS signal.
-                        if (location == null || !location.hasAccuracy()) {
-                            Log.d(LOGTAG, "Stopped, because no location with accuracy is present.");
+                        if (location == null) {
+                            AsyncLog.d(LOGTAG, "Stopped, because no sufficiently accurate location is present.");
                             return new Robot.ControlParams(0, 0);
                         }
-                        float accuracy = location.getAccuracy();
-                        if (accuracy > 10.0f) {
-                            Log.d(LOGTAG, "Stopped, because of insufficient location accuracy.");
+
+                        // Never drive outside of the permitted area.
+                        if (!geofences.permits(location.getLatitude(), location.getLongitude())) {
+                            AsyncLog.d(LOGTAG, "Stopped, because the robot is outside the permitted area.");
                             return new Robot.ControlParams(0, 0);
                         }
 
@@ -204,40 +430,89 @@ public class MainActivity extends AppCompatActivity {
                                 turning = turning - 360.0f;
                             }
                         }
-                        Log.d(LOGTAG, "Chasing waypoint with turning value " + Float.toString(turning));
-                        return new Robot.ControlParams(30, Math.min(Math.max(Math.round(turning), -30), 30));
-                }}).publish();
+                        AsyncLog.d(LOGTAG, "Chasing waypoint with turning value {}", turning);
 
-        // Set up USB connection management.
-        usbHandler = new UsbConnectionHandler(this);
-        IntentFilter filter = new IntentFilter();
-        filter.addAction(UsbConnectionHandler.USB_PERMISSION);
-        filter.addAction(UsbManager.ACTION_USB_DEVICE_ATTACHED);
-        filter.addAction(UsbManager.ACTION_USB_DEVICE_DETACHED);
-        registerReceiver(usbHandler, filter);
+                        // If the robot is heading out of the permitted area, slow down and turn
+                        // away from the border, or stop if no turn keeps it inside.
+                        int speed = CRUISE_SPEED;
+                        int steering = Math.min(Math.max(Math.round(turning), -MAX_TURNING), MAX_TURNING);
+                        double heading = location.hasBearing() ? location.getBearing() : dist[1];
+                        if (!geofences.permitsAhead(location.getLatitude(), location.getLongitude(),
+                                heading, BORDER_LOOKAHEAD_M)) {
+                            Integer clearTurn = geofences.clearTurn(location.getLatitude(),
+                                    location.getLongitude(), heading, steering, MAX_TURNING,
+                                    BORDER_LOOKAHEAD_M);
+                            if (clearTurn == null) {
+                                AsyncLog.d(LOGTAG, "Stopped, because every way ahead leaves the permitted area.");
+                                return new Robot.ControlParams(0, 0);
+                            }
+                            AsyncLog.d(LOGTAG, "Turning away from the border by {}", clearTurn);
+                            speed = BORDER_SPEED;
+                            steering = clearTurn;
+                        }
+                        return new Robot.ControlParams(speed, steering,
+                                location.getElapsedRealtimeNanos());
+                }}).publish();
 
         // Send control commands to the robot.
         robotControl.subscribe(new Subscriber<Robot.ControlParams>() {
             @Override
             public void onCompleted() {
-                Log.i(LOGTAG, "Robot Control subscriber received onCompleted message.");
+                AsyncLog.i(LOGTAG, "Robot Control subscriber received onCompleted message.");
             }
 
             @Override
             public void onError(Throwable e) {
-                Log.e(LOGTAG, e.toString());
+                AsyncLog.e(LOGTAG, "{}", e);
             }
 
             @Override
             public void onNext(Robot.ControlParams controlParams) {
-                Robot robot = usbHandler.getRobot();
-                if (robot != null) {
-                    robot.steerRobot(controlParams);
+                if (usbHandler.steer(controlParams)) {
+                    if (startup.isReady()) {
+                        startup.reach(StartupTimeline.Stage.FIRST_STEER);
+                    }
+                    if (controlParams.fixElapsedNanos > 0) {
+                        long latencyMS = TimeUnit.NANOSECONDS.toMillis(
+                                SystemClock.elapsedRealtimeNanos() - controlParams.fixElapsedNanos);
+                        fixToServoLatencyMS = (3 * fixToServoLatencyMS + latencyMS) / 4;
+                    }
                 }
             }
         });
 
-        // Stop robot if 2 seconds elapse without a robot control message.
+        // Adapt location sampling to the robot's state.
+        Observable.combineLatest(locationSource, goalSource, pausedSource, robotControl,
+                new Func4<Location, CommandChannel.Waypoint, Boolean, Robot.ControlParams,
+                          LocationPolicy.Setting>() {
+                    @Override
+                    public LocationPolicy.Setting call(Location location,
+                                                       CommandChannel.Waypoint waypoint,
+                                                       Boolean isPaused,
+                                                       Robot.ControlParams controlParams) {
+                        if (waypoint == null) {
+                            return locationPolicy.select(isPaused, false, 0.0f, -1.0f, 0,
+                                                         fixToServoLatencyMS);
+                        }
+                        if (location == null) {
+                            return locationPolicy.select(isPaused, true, -1.0f, -1.0f, 0,
+                                                         fixToServoLatencyMS);
+                        }
+                        float[] dist = new float[]{0.0f};
+                        Location.distanceBetween(location.getLatitude(), location.getLongitude(),
+                                waypoint.lat, waypoint.lng, dist);
+                        return locationPolicy.select(isPaused, true, dist[0],
+                                location.hasSpeed() ? location.getSpeed() : -1.0f,
+                                controlParams.turning, fixToServoLatencyMS);
+                }}).distinctUntilChanged()
+                .observeOn(AndroidSchedulers.mainThread())
+                .subscribe(new Action1<LocationPolicy.Setting>() {
+                    @Override
+                    public void call(LocationPolicy.Setting setting) {
+                        locationService.applySetting(setting);
+                }});
+
+        // Stop robot if the control timeout elapses without a robot control message.
         Observable.combineLatest(robotControl.timeInterval(),
                 Observable.interval(1500, TimeUnit.MILLISECONDS),
                 new Func2<TimeInterval<Robot.ControlParams>, Long, Long>() {
@@ -248,46 +523,78 @@ public class MainActivity extends AppCompatActivity {
                 }).filter(new Func1<Long, Boolean>() {
                     @Override
                     public Boolean call(Long intervalMS) {
-                        return intervalMS > 2000;
+                        return intervalMS > CONTROL_TIMEOUT_MS;
                 }}).subscribe(new Action1<Long>() {
                     @Override
                     public void call(Long intervalMS) {
-                        Log.d(LOGTAG, "Security timer stopped robot.");
-                        Robot robot = usbHandler.getRobot();
-                        if (robot != null) {
-                            robot.steerRobot(new Robot.ControlParams(0, 0));
-                        }
+                        AsyncLog.d(LOGTAG, "Security timer stopped robot.");
+                        usbHandler.steer(new Robot.ControlParams(0, 0));
                 }});
 
-        // Send location updates to user via DDP.
-        locationSource.subscribe(new Action1<Location>() {
+        // Send location updates to user via DDP, coarse ones too, so the robot stays on the map.
+        rawLocationSource.subscribe(new Action1<Location>() {
             @Override
             public void call(Location location) {
-                if (meteor.isConnected()) {
+                if (location != null && meteor.isConnected()) {
                     meteor.call("LogPosition",
-                            new Object[]{location.getLatitude(), location.getLongitude()});
+                            new Object[]{location.getLatitude(), location.getLongitude(),
+                                         robotScope.getRobotId()});
                 }
             }
         });
 
-        // Start main data sources.
+        // Upload compressed snapshots of the explored area while exploring.
+        if (explorer != null) {
+            Observable.combineLatest(Observable.interval(COVERAGE_UPLOAD_S, TimeUnit.SECONDS),
+                    exploringSource,
+                    new Func2<Long, Boolean, Boolean>() {
+                        @Override
+                        public Boolean call(Long tick, Boolean isExploring) {
+                            return isExploring;
+                        }
+                    }).filter(new Func1<Boolean, Boolean>() {
+                        @Override
+                        public Boolean call(Boolean isExploring) {
+                            return isExploring;
+                    }}).map(new Func1<Boolean, Integer>() {
+                        @Override
+                        public Integer call(Boolean isExploring) {
+                            return explorer.getGrid().getCoveredCells();
+                    }}).distinctUntilChanged().map(new Func1<Integer, String>() {
+                        @Override
+                        public String call(Integer coveredCells) {
+                            return explorer.getGrid().encodeSnapshot();
+                    }}).observeOn(AndroidSchedulers.mainThread())
+                    .subscribe(new Action1<String>() {
+                        @Override
+                        public void call(String snapshot) {
+                            if (meteor.isConnected()) {
+                                CoverageGrid grid = explorer.getGrid();
+                                meteor.call("LogCoverage",
+                                        new Object[]{grid.getMinLat(), grid.getMinLng(),
+                                                     grid.getCellSizeM(), grid.getTilesX(),
+                                                     grid.getTilesY(), snapshot,
+                                                     robotScope.getRobotId()});
+                            }
+                    }});
+        }
+
+        // Start the remaining data sources.
         robotControl.connect();
-        commandSource.connect();
-        locationSource.connect();
+        missionSource.connect();
     }
 
     @Override
     public void onDestroy() {
-        Robot robot = usbHandler.getRobot();
-        if (robot != null) {
-            robot.terminate();
-        }
         if (meteor.isConnected()) {
             meteor.disconnect();
         }
         meteor.removeCallbacks();
+        commandChannel.terminate();
         locationService.terminate();
+        missionStore.terminate();
         unregisterReceiver(usbHandler);
+        usbHandler.terminate();
         super.onDestroy();
     }
 
@@ -296,7 +603,7 @@ public class MainActivity extends AppCompatActivity {
                                            @NonNull String permissions[],
                                            @NonNull int[] grantResults) {
         if (grantResults.length > 0 && grantResults[0] != PackageManager.PERMISSION_GRANTED) {
-            Log.e(LOGTAG, "User denied access to location service, app won't work.");
+            AsyncLog.e(LOGTAG, "User denied access to location service, app won't work.");
         }
     }
 }
@@ -0,0 +1,273 @@
+package hu.elte.prabi.campusexplorer;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import rx.Observable;
+import rx.Subscriber;
+
+/**
+ * Keeps the robot's mission - its state, route and geofences - on the device, so after a
+ * restart the robot can carry on before the DDP server has synced it again.
+ *
+ * Subscribing loads the saved mission and emits it as RESTORE commands, which give way to
+ * the live commands of the server. Saves are coalesced and written on a background thread.
+ */
+class MissionStore implements Observable.OnSubscribe<CommandChannel.Command> {
+
+    private final String LOGTAG = "MissionStore";
+
+    private static final long WRITE_DELAY_MS = 500;
+
+    private final File file;
+    private final String robotId;
+    private final ScheduledExecutorService writeThread =
+            Executors.newSingleThreadScheduledExecutor();
+
+    // The mission to write next, guarded by this. The route is only serialized when written,
+    // and the restored waypoints are written until there is a route.
+    private String state;
+    private Route route;
+    private JSONArray restoredWaypoints = new JSONArray();
+    private List<Geofence> geofences = new ArrayList<>();
+    private boolean writeScheduled = false;
+
+    public MissionStore(File file, String robotId) {
+        this.file = file;
+        this.robotId = robotId;
+    }
+
+    // Write any pending save and stop the background thread.
+    public void terminate() {
+        writeThread.shutdown();
+    }
+
+    public synchronized void saveState(String state) {
+        this.state = state;
+        scheduleWrite();
+    }
+
+    // Only marks the route as changed, it is copied once per write however often it changes.
+    public synchronized void saveRoute(Route route) {
+        this.route = route;
+        scheduleWrite();
+    }
+
+    public synchronized void saveGeofences(Collection<Geofence> geofences) {
+        // Geofences are immutable, so they are only serialized when written.
+        this.geofences = new ArrayList<>(geofences);
+        scheduleWrite();
+    }
+
+    private void scheduleWrite() {
+        if (writeScheduled) {
+            return;
+        }
+        writeScheduled = true;
+        writeThread.schedule(new Runnable() {
+            @Override
+            public void run() {
+                write();
+            }
+        }, WRITE_DELAY_MS, TimeUnit.MILLISECONDS);
+    }
+
+    private void write() {
+        String json;
+        try {
+            JSONObject mission = new JSONObject();
+            Route routeToWrite;
+            synchronized (this) {
+                writeScheduled = false;
+                routeToWrite = route;
+                mission.put("robotId", robotId);
+                mission.put("state", state);
+                mission.put("waypoints", restoredWaypoints);
+                JSONArray fences = new JSONArray();
+                for (Geofence geofence : geofences) {
+                    JSONArray vertices = new JSONArray();
+                    for (int i = 0; i < geofence.lats.length; i++) {
+                        vertices.put(new JSONObject()
+                                .put("lat", geofence.lats[i])
+                                .put("lng", geofence.lngs[i]));
+                    }
+                    fences.put(new JSONObject()
+                            .put("documentId", geofence.documentId)
+                            .put("kind", geofence.keepOut ? "keepout" : "keepin")
+                            .put("vertices", vertices));
+                }
+                mission.put("geofences", fences);
+            }
+            if (routeToWrite != null) {
+                mission.put("waypoints", toJson(routeToWrite));
+            }
+            json = mission.toString();
+        }
+        catch (JSONException e) {
+            AsyncLog.e(LOGTAG, "{}", e);
+            return;
+        }
+
+        // Replace the saved mission in one step, so a crash never leaves half of it.
+        File temporary = new File(file.getPath() + ".tmp");
+        try {
+            OutputStream out = new FileOutputStream(temporary);
+            try {
+                out.write(json.getBytes("UTF-8"));
+            }
+            finally {
+                out.close();
+            }
+            if (!temporary.renameTo(file)) {
+                AsyncLog.e(LOGTAG, "Failed to replace {}", file);
+            }
+        }
+        catch (IOException e) {
+            AsyncLog.e(LOGTAG, "{}", e);
+        }
+    }
+
+    // Waypoints change as they are visited, so they are copied under the route's lock.
+    private static JSONArray toJson(Route route) throws JSONException {
+        JSONArray json = new JSONArray();
+        synchronized (route) {
+            for (CommandChannel.Waypoint wp : route.getWaypoints()) {
+                if (wp.id == Explorer.EXPLORATION_WAYPOINT_ID) {
+                    continue;  // generated again when exploring
+                }
+                json.put(new JSONObject()
+                        .put("documentId", wp.documentId)
+                        .put("id", wp.id)
+                        .put("lat", wp.lat)
+                        .put("lng", wp.lng)
+                        .put("visited", wp.visited));
+            }
+        }
+        return json;
+    }
+
+    @Override
+    public void call(Subscriber<? super CommandChannel.Command> subscriber) {
+        if (!file.exists()) {
+            AsyncLog.i(LOGTAG, "No saved mission to restore.");
+            if (!subscriber.isUnsubscribed()) {
+                subscriber.onCompleted();
+            }
+            return;
+        }
+
+        List<CommandChannel.Command> restored = new ArrayList<>();
+        try {
+            JSONObject mission = new JSONObject(read());
+            if (!robotId.equals(mission.optString("robotId"))) {
+                AsyncLog.w(LOGTAG, "Ignored the saved mission of another robot.");
+                if (!subscriber.isUnsubscribed()) {
+                    subscriber.onCompleted();
+                }
+                return;
+            }
+
+            JSONArray savedWaypoints = mission.getJSONArray("waypoints");
+            for (int i = 0; i < savedWaypoints.length(); i++) {
+                JSONObject jObject = savedWaypoints.getJSONObject(i);
+                CommandChannel.Waypoint wp = new CommandChannel.Waypoint(
+                        jObject.getDouble("lat"),
+                        jObject.getDouble("lng"),
+                        jObject.getInt("id"),
+                        jObject.getString("documentId"));
+                wp.visited = jObject.getBoolean("visited");
+                restored.add(new CommandChannel.Command(CommandChannel.CommandVerb.RESTORE,
+                                                        CommandChannel.CommandDataType.WAYPOINT,
+                                                        wp));
+            }
+
+            List<Geofence> savedGeofences = new ArrayList<>();
+            JSONArray fences = mission.getJSONArray("geofences");
+            for (int i = 0; i < fences.length(); i++) {
+                JSONObject jObject = fences.getJSONObject(i);
+                JSONArray vertices = jObject.getJSONArray("vertices");
+                double[] lats = new double[vertices.length()];
+                double[] lngs = new double[vertices.length()];
+                for (int v = 0; v < vertices.length(); v++) {
+                    JSONObject vertex = vertices.getJSONObject(v);
+                    lats[v] = vertex.getDouble("lat");
+                    lngs[v] = vertex.getDouble("lng");
+                }
+                Geofence geofence = new Geofence(jObject.getString("documentId"),
+                        "keepout".equals(jObject.getString("kind")), lats, lngs);
+                savedGeofences.add(geofence);
+                restored.add(new CommandChannel.Command(CommandChannel.CommandVerb.RESTORE,
+                                                        CommandChannel.CommandDataType.GEOFENCE,
+                                                        geofence));
+            }
+
+            String savedState = mission.isNull("state") ? null : mission.getString("state");
+            if (savedState != null) {
+                restored.add(new CommandChannel.Command(CommandChannel.CommandVerb.RESTORE,
+                                                        CommandChannel.CommandDataType.STATE,
+                                                        savedState));
+            }
+
+            // Keep the restored mission until newer parts of it are saved.
+            synchronized (this) {
+                if (state == null) {
+                    state = savedState;
+                }
+                if (route == null) {
+                    restoredWaypoints = savedWaypoints;
+                }
+                if (geofences.isEmpty()) {
+                    geofences = savedGeofences;
+                }
+            }
+        }
+        catch (IOException | JSONException e) {
+            AsyncLog.e(LOGTAG, "Failed to restore the saved mission: {}", e);
+            restored.clear();
+        }
+
+        AsyncLog.i(LOGTAG, "Restored {} saved mission items.", restored.size());
+        for (CommandChannel.Command command : restored) {
+            if (subscriber.isUnsubscribed()) {
+                return;
+            }
+            subscriber.onNext(command);
+        }
+        if (!subscriber.isUnsubscribed()) {
+            subscriber.onCompleted();
+        }
+    }
+
+    private String read() throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            byte[] bytes = new byte[(int) file.length()];
+            int length = 0;
+            while (length < bytes.length) {
+                int count = in.read(bytes, length, bytes.length - length);
+                if (count < 0) {
+                    break;
+                }
+                length += count;
+            }
+            return new String(bytes, 0, length, "UTF-8");
+        }
+        finally {
+            in.close();
+        }
+    }
+}
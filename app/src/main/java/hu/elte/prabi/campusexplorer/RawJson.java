@@ -0,0 +1,45 @@
+package hu.elte.prabi.campusexplorer;
+
+/**
+ * Reads single fields of a JSON document by scanning its raw text, without parsing or
+ * allocating, for decisions that must be made before a document is parsed. Keys are given
+ * with their quotes, e.g. "\"state\"". Only the first occurrence of a key is looked at, and
+ * string values are compared without unescaping.
+ */
+final class RawJson {
+
+    private RawJson() {
+    }
+
+    public static boolean hasKey(String json, String quotedKey) {
+        return json.indexOf(quotedKey) >= 0;
+    }
+
+    // Whether the first occurrence of the key has the given string value.
+    public static boolean stringValueEquals(String json, String quotedKey, String value) {
+        int keyIndex = json.indexOf(quotedKey);
+        if (keyIndex < 0) {
+            return false;
+        }
+        int i = skipWhitespace(json, keyIndex + quotedKey.length());
+        if (i >= json.length() || json.charAt(i) != ':') {
+            return false;
+        }
+        i = skipWhitespace(json, i + 1);
+        if (i >= json.length() || json.charAt(i) != '"') {
+            return false;
+        }
+        int valueStart = i + 1;
+        int valueEnd = valueStart + value.length();
+        return valueEnd < json.length() &&
+               json.regionMatches(valueStart, value, 0, value.length()) &&
+               json.charAt(valueEnd) == '"';
+    }
+
+    private static int skipWhitespace(String json, int i) {
+        while (i < json.length() && Character.isWhitespace(json.charAt(i))) {
+            i++;
+        }
+        return i;
+    }
+}
@@ -2,12 +2,19 @@ package hu.elte.prabi.campusexplorer;
 
 import android.hardware.usb.UsbDevice;
 import android.hardware.usb.UsbDeviceConnection;
+import android.os.SystemClock;
 import android.util.Log;
 
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
 import name.antonsmirnov.firmata.Firmata;
 import name.antonsmirnov.firmata.IFirmata;
 import name.antonsmirnov.firmata.message.ServoConfigMessage;
 import name.antonsmirnov.firmata.message.SetPinModeMessage;
+import name.antonsmirnov.firmata.message.SysexMessage;
+import name.antonsmirnov.firmata.serial.ISerial;
 import name.antonsmirnov.firmata.serial.SerialException;
 
 class Robot {
@@ -16,56 +23,174 @@ class Robot {
 
     private Firmata firmata;
 
+    // Outbound control messages are written by a dedicated thread. Only the latest control
+    // parameters are kept, and a pending emergency stop is always written first.
+    private final Thread writer;
+    private volatile boolean running = true;
+    private final AtomicReference<ControlParams> pendingControl = new AtomicReference<>();
+    private final AtomicBoolean stopPending = new AtomicBoolean(false);
+    private volatile long stopRequestedNanos = 0;
+    private volatile boolean halted = false;
+    private final LatencyHistogram stopLatency;
+    private final LatencyProbe probe;
+
     static class ControlParams {
         public int speed;
         public int turning;
+        public long fixElapsedNanos;  // time of the location fix these were computed from, if any
+        public long decidedNanos;  // time these were computed
         public ControlParams(int speed, int turning) {
+            this(speed, turning, 0);
+        }
+        public ControlParams(int speed, int turning, long fixElapsedNanos) {
             this.speed = speed;
             this.turning = turning;
+            this.fixElapsedNanos = fixElapsedNanos;
+            this.decidedNanos = SystemClock.elapsedRealtimeNanos();
         }
     }
 
-    public Robot(UsbDevice device, UsbDeviceConnection connection) {
-        firmata = new Firmata(new FelhrUSBSerialAdapter(device, connection));
+    /**
+     * Opens the serial connection to the robot and sets its servos.
+     *
+     * @param initial control parameters to start with, e.g. to resume after a reconnection
+     * @param halted whether to start stopped until resumed, e.g. after an emergency stop
+     */
+    public Robot(UsbDevice device, UsbDeviceConnection connection, LatencyHistogram stopLatency,
+                 LatencyProbe probe, ControlParams initial, boolean halted) throws SerialException {
+        this(new FelhrUSBSerialAdapter(device, connection), stopLatency, probe, initial, halted);
+    }
 
-        // Log unhandled bytes received from USB Serial.
+    // Package visible, so tests can drive the robot through a stand-in serial port.
+    Robot(ISerial serial, LatencyHistogram stopLatency, LatencyProbe probe, ControlParams initial,
+          boolean halted) throws SerialException {
+        this.stopLatency = stopLatency;
+        this.probe = probe;
+        this.halted = halted;
+        probe.restart();
+        firmata = new Firmata(serial);
+
+        // Take latency probe replies and log unhandled bytes received from USB Serial.
         firmata.addListener(new IFirmata.StubListener() {
+            @Override
+            public void onSysexMessageReceived(SysexMessage message) {
+                if (message.getCommand() == LatencyProbe.LATENCY_PROBE) {
+                    Robot.this.probe.received(message.getData(), SystemClock.elapsedRealtimeNanos());
+                }
+            }
+
             @Override
             public void onUnknownByteReceived(int byteValue) {
-                Log.d(LOGTAG, "Received unexpected byte: " + (char)byteValue);
+                if (AsyncLog.isLoggable(Log.DEBUG)) {
+                    AsyncLog.d(LOGTAG, "Received unexpected byte: {}", Character.valueOf((char) byteValue));
+                }
             }
         });
 
         // Start USB Serial communication and initialize robot control.
+        firmata.getSerial().start();
         try {
-            firmata.getSerial().start();
             firmata.send(new SetPinModeMessage(8, SetPinModeMessage.PIN_MODE.SERVO.getMode()));
             firmata.send(new SetPinModeMessage(9, SetPinModeMessage.PIN_MODE.SERVO.getMode()));
         }
         catch (SerialException e) {
-            Log.e(LOGTAG, e.toString());
+            // Don't leave the device open, no Robot will be there to close it.
+            try {
+                firmata.getSerial().stop();
+            }
+            catch (SerialException stopFailure) {
+                AsyncLog.e(LOGTAG, "{}", stopFailure);
+            }
+            throw e;
         }
 
-        // Set the robot's speed to 0 and turn its wheels to look straight forward.
-        steerRobot(new ControlParams(0, 0));
+        // Set the servos before anything else is written.
+        steerRobot(initial);
+
+        writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeLoop();
+            }
+        }, "RobotWriter");
+        writer.setPriority(Thread.MAX_PRIORITY);
+        writer.start();
     }
 
     public void terminate() {
+        running = false;
+        LockSupport.unpark(writer);
+        try {
+            writer.join(100);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
         try {
             firmata.getSerial().stop();
         }
         catch (SerialException e) {
-            Log.e(LOGTAG, e.toString());
+            AsyncLog.e(LOGTAG, "{}", e);
         }
     }
 
+    // Queue control parameters, replacing any that haven't been written yet.
     public void steerRobot(ControlParams ctrlp) {
+        pendingControl.set(ctrlp);
+        LockSupport.unpark(writer);
+    }
+
+    /**
+     * Stops the robot ahead of any queued control, and keeps it stopped until resumed.
+     *
+     * @param requestedNanos System.nanoTime() of the stop request, or 0 if not to be measured
+     */
+    public void emergencyStop(long requestedNanos) {
+        halted = true;
+        stopRequestedNanos = requestedNanos;
+        stopPending.set(true);
+        LockSupport.unpark(writer);
+    }
+
+    public void resume() {
+        halted = false;
+    }
+
+    private void writeLoop() {
+        while (running) {
+            if (stopPending.getAndSet(false)) {
+                long requestedNanos = stopRequestedNanos;
+                write(new ControlParams(0, 0));
+                if (requestedNanos != 0) {
+                    long latency = System.nanoTime() - requestedNanos;
+                    stopLatency.record(latency);
+                    AsyncLog.i(LOGTAG, "Emergency stop written in {} us; {}", latency / 1000, stopLatency);
+                }
+                continue;
+            }
+            ControlParams ctrlp = pendingControl.getAndSet(null);
+            if (ctrlp == null) {
+                LockSupport.park(this);
+                continue;
+            }
+            if (halted && ctrlp.speed != 0) {
+                ctrlp = new ControlParams(0, ctrlp.turning);
+            }
+            write(ctrlp);
+        }
+    }
+
+    // Write the servo messages, followed by a probe measuring how long they take to apply.
+    private void write(ControlParams ctrlp) {
         try {
             firmata.send(constructAccelerationServoConfigMessage(90 - ctrlp.speed));
             firmata.send(constructTurningServoConfigMessage(90 + ctrlp.turning));
+            int sequence = probe.written(ctrlp, SystemClock.elapsedRealtimeNanos());
+            firmata.send(new SysexMessage(LatencyProbe.LATENCY_PROBE,
+                                          String.valueOf((char) sequence)));
         }
         catch (SerialException e) {
-            Log.e(LOGTAG, e.toString());
+            AsyncLog.e(LOGTAG, "{}", e);
         }
     }
 
@@ -0,0 +1,40 @@
+package hu.elte.prabi.campusexplorer;
+
+/**
+ * Identity of this robot within a fleet sharing one DDP server.
+ *
+ * Documents are tagged with a "robotId" field. The server is asked to publish only the
+ * documents of this robot, and the client drops foreign documents that still arrive
+ * (e.g. from an unfiltered publication) before spending any time on JSON parsing.
+ */
+class RobotScope {
+
+    static final String ROBOT_ID_FIELD = "robotId";
+
+    private static final String ROBOT_ID_KEY = "\"" + ROBOT_ID_FIELD + "\"";
+
+    private final String robotId;
+
+    public RobotScope(String robotId) {
+        this.robotId = robotId;
+    }
+
+    public String getRobotId() {
+        return robotId;
+    }
+
+    // Parameters of every subscription and method call made on behalf of this robot.
+    public Object[] subscriptionParams() {
+        return new Object[]{robotId};
+    }
+
+    /**
+     * Decides whether a document belongs to this robot by scanning its raw JSON, without
+     * parsing or allocating. Documents that are not tagged with a robot ID are addressed to
+     * the whole fleet and are accepted.
+     */
+    public boolean accepts(String json) {
+        return !RawJson.hasKey(json, ROBOT_ID_KEY) ||
+               RawJson.stringValueEquals(json, ROBOT_ID_KEY, robotId);
+    }
+}
@@ -0,0 +1,322 @@
+package hu.elte.prabi.campusexplorer;
+
+import android.support.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import rx.Observable;
+import rx.functions.Func1;
+
+/**
+ * The waypoints to visit, ordered by their ID, and the detection of arriving at them.
+ *
+ * Arrival is tested against the path driven between consecutive fixes instead of the fixes
+ * themselves, so a waypoint passed between two fixes still counts as visited. Fixes too far
+ * apart in time aren't joined, as the robot may have stopped or been moved in between. The
+ * goal, the first unvisited waypoint, also counts as visited once the robot has closed in on
+ * it and it then falls behind, so the robot doesn't turn back to hunt for it. Waypoints are kept
+ * in a uniform grid, so each step only tests the waypoints near the driven path, and the
+ * goal is found by a cursor that only moves back when waypoints are added before it.
+ * Changes are synchronized on the route, so it can be saved from another thread.
+ */
+class Route {
+
+    private static final double METRES_PER_DEGREE = 111320.0;
+    private static final double CELL_SIZE_M = 20.0;
+
+    // The goal within this many radii counts as approached, and stays so until it is
+    // farther than the release distance.
+    private static final double APPROACH_FACTOR = 2.0;
+    private static final double RELEASE_FACTOR = 3.0;
+
+    // The goal only counts as behind once the robot has moved this many radii since it
+    // approached the goal, farther than the jitter of a robot standing still.
+    private static final double MIN_TRAVEL_FACTOR = 1.0;
+
+    // The goal only counts as behind if the robot got closer to it than this fraction of
+    // its distance when approaching, so driving away from a nearby goal doesn't pass it.
+    private static final double CLOSE_IN_FACTOR = 0.8;
+
+    private final long maxFixGapNanos;
+
+    private final List<CommandChannel.Waypoint> waypoints = new ArrayList<>();
+    private final Map<String, CommandChannel.Waypoint> byDocumentId = new HashMap<>();
+    private final Map<Long, List<CommandChannel.Waypoint>> grid = new HashMap<>();
+
+    // The waypoints before this index are all visited.
+    private int cursor = 0;
+
+    // The goal, while it counts as approached, where the robot was when it approached it,
+    // its distance from there, and the closest the robot has come to it since.
+    private CommandChannel.Waypoint approachedGoal;
+    private double approachX, approachY;
+    private double approachDistance, closestDistance;
+
+    // Waypoints visited by the latest step, reused by the next one.
+    private final List<CommandChannel.Waypoint> newlyVisited = new ArrayList<>();
+
+    // Local projection to metres, fixed by the first waypoint.
+    private boolean projected = false;
+    private double metresPerDegreeLng;
+
+    private boolean hasPreviousFix = false;
+    private double previousX, previousY;
+    private long previousNanos;
+
+    /**
+     * @param maxFixGapMS fixes further apart than this are not joined into a driven segment
+     */
+    public Route(long maxFixGapMS) {
+        maxFixGapNanos = maxFixGapMS * 1000000L;
+    }
+
+    // Iterating over them from another thread requires holding the route's lock.
+    public List<CommandChannel.Waypoint> getWaypoints() {
+        return Collections.unmodifiableList(waypoints);
+    }
+
+    // Add or replace a waypoint. A replaced waypoint that has been visited stays visited.
+    public synchronized void add(CommandChannel.Waypoint waypoint) {
+        CommandChannel.Waypoint replaced = remove(waypoint.documentId);
+        if (replaced != null) {
+            waypoint.visited |= replaced.visited;
+        }
+        if (!projected) {
+            metresPerDegreeLng = METRES_PER_DEGREE * Math.cos(Math.toRadians(waypoint.lat));
+            projected = true;
+        }
+        int index = 0;
+        while (index < waypoints.size() && waypoints.get(index).id <= waypoint.id) {
+            index++;
+        }
+        waypoints.add(index, waypoint);
+        if (index < cursor && !waypoint.visited) {
+            cursor = index;
+        }
+        byDocumentId.put(waypoint.documentId, waypoint);
+        long cell = cellOf(x(waypoint.lng), y(waypoint.lat));
+        List<CommandChannel.Waypoint> inCell = grid.get(cell);
+        if (inCell == null) {
+            inCell = new ArrayList<>(1);
+            grid.put(cell, inCell);
+        }
+        inCell.add(waypoint);
+    }
+
+    // Add a waypoint restored from the device, unless it's already known from the server.
+    public synchronized void restore(CommandChannel.Waypoint waypoint) {
+        CommandChannel.Waypoint known = byDocumentId.get(waypoint.documentId);
+        if (known != null) {
+            known.visited |= waypoint.visited;
+        } else {
+            add(waypoint);
+        }
+    }
+
+    /**
+     * Removes the waypoints not among the given documents. Exploration goals are generated on
+     * the device, not by the server, so they are kept.
+     *
+     * @return the waypoints removed
+     */
+    public synchronized List<CommandChannel.Waypoint> retain(Set<String> documentIds) {
+        List<CommandChannel.Waypoint> removed = new ArrayList<>(0);
+        for (CommandChannel.Waypoint wp : new ArrayList<>(waypoints)) {
+            if (wp.id != Explorer.EXPLORATION_WAYPOINT_ID && !documentIds.contains(wp.documentId)) {
+                remove(wp.documentId);
+                removed.add(wp);
+            }
+        }
+        return removed;
+    }
+
+    @Nullable
+    public synchronized CommandChannel.Waypoint remove(String documentId) {
+        CommandChannel.Waypoint waypoint = byDocumentId.remove(documentId);
+        if (waypoint != null) {
+            int index = waypoints.indexOf(waypoint);
+            waypoints.remove(index);
+            if (index < cursor) {
+                cursor--;
+            }
+            if (waypoint == approachedGoal) {
+                approachedGoal = null;
+            }
+            long cell = cellOf(x(waypoint.lng), y(waypoint.lat));
+            List<CommandChannel.Waypoint> inCell = grid.get(cell);
+            inCell.remove(waypoint);
+            if (inCell.isEmpty()) {
+                grid.remove(cell);
+            }
+        }
+        return waypoint;
+    }
+
+    @Nullable
+    public synchronized CommandChannel.Waypoint nextUnvisited() {
+        // Waypoints only ever become visited, so the cursor moves past each of them once.
+        while (cursor < waypoints.size() && waypoints.get(cursor).visited) {
+            cursor++;
+        }
+        return cursor < waypoints.size() ? waypoints.get(cursor) : null;
+    }
+
+    /**
+     * Turns the states of a route into its goal, passed on only when it changes. A null goal,
+     * once every waypoint is visited or removed, stops the robot, so it has to come through
+     * each time the last goal is gone, not only the first time.
+     */
+    static Observable.Transformer<Route, CommandChannel.Waypoint> goals() {
+        return new Observable.Transformer<Route, CommandChannel.Waypoint>() {
+            @Override
+            public Observable<CommandChannel.Waypoint> call(Observable<Route> routes) {
+                return routes.map(new Func1<Route, CommandChannel.Waypoint>() {
+                    @Override
+                    public CommandChannel.Waypoint call(Route route) {
+                        return route.nextUnvisited();
+                    }
+                }).distinctUntilChanged();
+            }
+        };
+    }
+
+    /**
+     * Moves the robot to a new fix and marks the waypoints it reached on the way.
+     *
+     * @param radiusM distance within which a waypoint counts as reached
+     * @param elapsedNanos time of the fix, by SystemClock.elapsedRealtimeNanos()
+     * @return the waypoints newly visited, in a list reused by the next call
+     */
+    public synchronized List<CommandChannel.Waypoint> advance(double lat, double lng, double radiusM,
+                                                              long elapsedNanos) {
+        newlyVisited.clear();
+        if (!projected) {
+            return newlyVisited;
+        }
+        double x = x(lng);
+        double y = y(lat);
+        boolean joined = hasPreviousFix && elapsedNanos - previousNanos <= maxFixGapNanos;
+        double fromX = joined ? previousX : x;
+        double fromY = joined ? previousY : y;
+        previousX = x;
+        previousY = y;
+        previousNanos = elapsedNanos;
+        hasPreviousFix = true;
+
+        // Visit the cells around the bounding box of the driven segment.
+        long minCellX = cellIndex(Math.min(fromX, x) - radiusM);
+        long maxCellX = cellIndex(Math.max(fromX, x) + radiusM);
+        long minCellY = cellIndex(Math.min(fromY, y) - radiusM);
+        long maxCellY = cellIndex(Math.max(fromY, y) + radiusM);
+        if ((maxCellX - minCellX + 1) * (maxCellY - minCellY + 1) > grid.size()) {
+            // A long jump covers more cells than there are occupied ones.
+            for (List<CommandChannel.Waypoint> inCell : grid.values()) {
+                test(inCell, fromX, fromY, x, y, radiusM);
+            }
+        } else {
+            for (long cellX = minCellX; cellX <= maxCellX; cellX++) {
+                for (long cellY = minCellY; cellY <= maxCellY; cellY++) {
+                    List<CommandChannel.Waypoint> inCell = grid.get(key(cellX, cellY));
+                    if (inCell != null) {
+                        test(inCell, fromX, fromY, x, y, radiusM);
+                    }
+                }
+            }
+        }
+
+        CommandChannel.Waypoint goal = nextUnvisited();
+        if (goal != null) {
+            testOvershoot(goal, fromX, fromY, x, y, radiusM);
+        }
+        return newlyVisited;
+    }
+
+    // Visit the waypoints the driven segment passes within the radius of.
+    private void test(List<CommandChannel.Waypoint> candidates,
+                      double fromX, double fromY, double toX, double toY, double radiusM) {
+        for (CommandChannel.Waypoint wp : candidates) {
+            if (!wp.visited && sweptDistance(wp, fromX, fromY, toX, toY) < radiusM) {
+                wp.visited = true;
+                newlyVisited.add(wp);
+            }
+        }
+    }
+
+    // Visit the goal if the robot has closed in on it and it is now behind the robot.
+    private void testOvershoot(CommandChannel.Waypoint goal,
+                               double fromX, double fromY, double toX, double toY, double radiusM) {
+        double goalX = x(goal.lng);
+        double goalY = y(goal.lat);
+        double swept = sweptDistance(goal, fromX, fromY, toX, toY);
+        if (goal != approachedGoal) {
+            if (swept >= radiusM * APPROACH_FACTOR) {
+                approachedGoal = null;
+                return;
+            }
+            approachedGoal = goal;
+            approachX = fromX;
+            approachY = fromY;
+            approachDistance = Math.hypot(fromX - goalX, fromY - goalY);
+            closestDistance = swept;
+        } else {
+            closestDistance = Math.min(closestDistance, swept);
+        }
+        double travelX = toX - approachX;
+        double travelY = toY - approachY;
+        double minTravel = radiusM * MIN_TRAVEL_FACTOR;
+        boolean behind = closestDistance < approachDistance * CLOSE_IN_FACTOR &&
+                travelX * travelX + travelY * travelY >= minTravel * minTravel &&
+                (goalX - toX) * travelX + (goalY - toY) * travelY < 0.0;
+
+        if (behind) {
+            goal.visited = true;
+            newlyVisited.add(goal);
+            approachedGoal = null;
+        } else if (Math.hypot(toX - goalX, toY - goalY) > radiusM * RELEASE_FACTOR) {
+            approachedGoal = null;
+        }
+    }
+
+    // Distance of a waypoint from the closest point of the driven segment.
+    private double sweptDistance(CommandChannel.Waypoint wp,
+                                 double fromX, double fromY, double toX, double toY) {
+        double wpX = x(wp.lng);
+        double wpY = y(wp.lat);
+        double segmentX = toX - fromX;
+        double segmentY = toY - fromY;
+        double segmentLengthSq = segmentX * segmentX + segmentY * segmentY;
+        double t = 0.0;
+        if (segmentLengthSq > 0.0) {
+            t = ((wpX - fromX) * segmentX + (wpY - fromY) * segmentY) / segmentLengthSq;
+            t = Math.min(Math.max(t, 0.0), 1.0);
+        }
+        double dx = fromX + t * segmentX - wpX;
+        double dy = fromY + t * segmentY - wpY;
+        return Math.sqrt(dx * dx + dy * dy);
+    }
+
+    private double x(double lng) {
+        return lng * metresPerDegreeLng;
+    }
+
+    private double y(double lat) {
+        return lat * METRES_PER_DEGREE;
+    }
+
+    private static long cellIndex(double metres) {
+        return (long) Math.floor(metres / CELL_SIZE_M);
+    }
+
+    private static long cellOf(double x, double y) {
+        return key(cellIndex(x), cellIndex(y));
+    }
+
+    private static long key(long cellX, long cellY) {
+        return (cellX << 32) ^ (cellY & 0xffffffffL);
+    }
+}
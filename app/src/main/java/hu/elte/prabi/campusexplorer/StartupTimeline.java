@@ -0,0 +1,77 @@
+package hu.elte.prabi.campusexplorer;
+
+import android.os.SystemClock;
+
+import java.util.Arrays;
+
+/**
+ * Records when each startup stage finishes, relative to the creation of the activity.
+ *
+ * The stages run concurrently. The robot is ready to drive once the mission is loaded, a
+ * location fix is present and the robot is connected; until then control is held back.
+ * The full timeline is logged when the first control message reaches the robot.
+ */
+class StartupTimeline {
+
+    enum Stage {
+        MISSION_LOADED,
+        LOCATION_FIXED,
+        USB_OPENED,
+        DDP_SYNCED,
+        FIRST_STEER
+    }
+
+    private static final Stage[] READINESS = new Stage[]{
+            Stage.MISSION_LOADED, Stage.LOCATION_FIXED, Stage.USB_OPENED};
+
+    private final String LOGTAG = "Startup";
+
+    private final long startMS = SystemClock.elapsedRealtime();
+    private final long[] reachedMS = new long[Stage.values().length];
+    private volatile boolean ready = false;
+
+    public StartupTimeline() {
+        Arrays.fill(reachedMS, -1);
+    }
+
+    public boolean isReady() {
+        return ready;
+    }
+
+    // Record the first time a stage is reached; later calls are ignored.
+    public synchronized void reach(Stage stage) {
+        if (reachedMS[stage.ordinal()] >= 0) {
+            return;
+        }
+        long elapsedMS = SystemClock.elapsedRealtime() - startMS;
+        reachedMS[stage.ordinal()] = elapsedMS;
+        AsyncLog.i(LOGTAG, "Reached {} after {} ms.", stage, elapsedMS);
+
+        if (!ready) {
+            boolean allReached = true;
+            for (Stage required : READINESS) {
+                allReached &= reachedMS[required.ordinal()] >= 0;
+            }
+            if (allReached) {
+                ready = true;
+                AsyncLog.i(LOGTAG, "Ready to drive after {} ms.", elapsedMS);
+            }
+        }
+        if (stage == Stage.FIRST_STEER) {
+            AsyncLog.i(LOGTAG, "Timeline: {}", toString());
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder timeline = new StringBuilder();
+        for (Stage stage : Stage.values()) {
+            if (timeline.length() > 0) {
+                timeline.append(", ");
+            }
+            long elapsedMS = reachedMS[stage.ordinal()];
+            timeline.append(stage).append(" ").append(elapsedMS >= 0 ? elapsedMS + " ms" : "pending");
+        }
+        return timeline.toString();
+    }
+}
@@ -8,8 +8,8 @@ import android.content.res.XmlResourceParser;
 import android.hardware.usb.UsbDevice;
 import android.hardware.usb.UsbDeviceConnection;
 import android.hardware.usb.UsbManager;
+import android.os.SystemClock;
 import android.support.annotation.Nullable;
-import android.util.Log;
 
 import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
@@ -17,20 +17,93 @@ import org.xmlpull.v1.XmlPullParserException;
 import java.io.IOException;
 import java.util.HashSet;
 import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 
+import name.antonsmirnov.firmata.serial.SerialException;
+
+/**
+ * Supervises the USB connection to the robot.
+ *
+ * Control parameters are steered through the handler, which keeps the latest of them while
+ * the robot is disconnected. When the robot is attached again, it is reopened in the
+ * background without asking for permission again, if the app still has it, and the servos
+ * are restored to the latest control parameters if those are still fresh.
+ */
 class UsbConnectionHandler extends BroadcastReceiver {
 
     static final String USB_PERMISSION = "hu.elte.prabi.campusexplorer.USB_PERMISSION";
     private final String LOGTAG = "UsbConnHandler";
     private final Set<Integer> compatibleBoardVendorIds = new HashSet<>();
 
+    // A freshly attached device may not be ready to open yet, so opening it is retried.
+    private static final int OPEN_ATTEMPTS = 10;
+    private static final long OPEN_RETRY_MS = 100;
+
+    // Control parameters older than this are not restored after reconnecting, the same
+    // limit after which the security timer stops the robot.
+    private static final long RESTORE_MAX_AGE_NANOS =
+            TimeUnit.MILLISECONDS.toNanos(MainActivity.CONTROL_TIMEOUT_MS);
+
     private UsbManager usbManager;
-    private UsbDevice usbDevice;
-    private Robot robot;
+    private volatile UsbDevice usbDevice;
+    private volatile Robot robot;
+    private final StartupTimeline startup;
 
-    @Nullable
-    public Robot getRobot() {
-        return robot;
+    // Parsing the device filter, opening the device and starting the serial connection all
+    // block, so they run on this thread instead of the UI thread the broadcasts arrive on.
+    private final ScheduledExecutorService usbThread = Executors.newSingleThreadScheduledExecutor();
+
+    // Latest control parameters and when they were set, kept while the robot is away.
+    private final AtomicReference<Robot.ControlParams> desiredControl = new AtomicReference<>();
+    private volatile long desiredControlNanos = 0;
+
+    // Emergency stop state, kept across reconnections of the robot.
+    private volatile boolean halted = false;
+    private final LatencyHistogram stopLatency = new LatencyHistogram("Stop latency");
+
+    // From the device appearing to the robot being open, and from losing it to that.
+    private final LatencyHistogram reconnectTime = new LatencyHistogram("USB reconnect time");
+    private final LatencyHistogram gapDuration = new LatencyHistogram("USB gap duration");
+    private long attachedNanos = 0;  // accessed on the USB thread only
+    private long detachedNanos = 0;  // accessed on the USB thread only
+
+    // Actuation latency by stage, kept across reconnections of the robot.
+    private final LatencyProbe latencyProbe = new LatencyProbe();
+
+    /**
+     * Steers the robot, or keeps the control parameters for when it is connected again.
+     *
+     * @return whether the robot is connected
+     */
+    public boolean steer(Robot.ControlParams ctrlp) {
+        desiredControl.set(ctrlp);
+        desiredControlNanos = SystemClock.elapsedRealtimeNanos();
+        Robot currentRobot = robot;
+        if (currentRobot != null) {
+            currentRobot.steerRobot(ctrlp);
+            return true;
+        }
+        return false;
+    }
+
+    // Stop the robot ahead of all queued control, measured from the given System.nanoTime().
+    public void emergencyStop(long requestedNanos) {
+        halted = true;
+        Robot currentRobot = robot;
+        if (currentRobot != null) {
+            currentRobot.emergencyStop(requestedNanos);
+        }
+    }
+
+    public void resume() {
+        halted = false;
+        Robot currentRobot = robot;
+        if (currentRobot != null) {
+            currentRobot.resume();
+        }
     }
 
     private void importCompatibleBoardVendorIds(Context context)
@@ -57,51 +130,172 @@ class UsbConnectionHandler extends BroadcastReceiver {
         return null;
     }
 
-    private void requestPermissionIfAppropriate(Context context) {
+    // Open the robot right away if the app may still use it, otherwise ask for permission.
+    private void connectIfAppropriate(Context context) {
+        if (robot != null) {
+            return;
+        }
         usbDevice = findFirmataCompatibleUsbDevice();
         if (usbDevice != null) {
-            Intent usbPermIntent = new Intent(USB_PERMISSION);
-            PendingIntent pi = PendingIntent.getBroadcast(context, 0, usbPermIntent, 0);
-            usbManager.requestPermission(usbDevice, pi);
+            if (usbManager.hasPermission(usbDevice)) {
+                openRobot(OPEN_ATTEMPTS);
+            } else {
+                Intent usbPermIntent = new Intent(USB_PERMISSION);
+                PendingIntent pi = PendingIntent.getBroadcast(context, 0, usbPermIntent, 0);
+                usbManager.requestPermission(usbDevice, pi);
+            }
         }
     }
 
-    public UsbConnectionHandler(Context context) {
+    public UsbConnectionHandler(final Context context, StartupTimeline startup) {
+        this.startup = startup;
         usbManager = (UsbManager) context.getSystemService(Context.USB_SERVICE);
 
-        // Fetch compatible board vendor IDs from resource XML.
-        try {
-            importCompatibleBoardVendorIds(context);
+        usbThread.execute(new Runnable() {
+            @Override
+            public void run() {
+                // Fetch compatible board vendor IDs from resource XML.
+                try {
+                    importCompatibleBoardVendorIds(context);
+                }
+                catch (XmlPullParserException | IOException e) {
+                    AsyncLog.e(LOGTAG, "Failed to import compatible vendor ids.");
+                }
+
+                // Check if compatible board is already available.
+                attachedNanos = SystemClock.elapsedRealtimeNanos();
+                connectIfAppropriate(context);
+            }
+        });
+    }
+
+    // Disconnect the robot and stop the USB thread once it's done.
+    public void terminate() {
+        usbThread.execute(new Runnable() {
+            @Override
+            public void run() {
+                closeRobot();
+            }
+        });
+        usbThread.shutdown();
+    }
+
+    private void openRobot(final int attemptsLeft) {
+        if (robot != null || usbDevice == null || usbThread.isShutdown()) {
+            return;
         }
-        catch (XmlPullParserException | IOException e) {
-            Log.e(LOGTAG, "Failed to import compatible vendor ids.");
+        long openStartNanos = SystemClock.elapsedRealtimeNanos();
+        UsbDeviceConnection connection = usbManager.openDevice(usbDevice);
+        Robot newRobot = null;
+        if (connection != null) {
+            try {
+                newRobot = new Robot(usbDevice, connection, stopLatency, latencyProbe,
+                                     restorableControl(), halted);
+            }
+            catch (SerialException e) {
+                AsyncLog.w(LOGTAG, "{}", e);
+                connection.close();
+            }
+        }
+        if (newRobot == null) {
+            if (attemptsLeft > 1) {
+                usbThread.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        openRobot(attemptsLeft - 1);
+                    }
+                }, OPEN_RETRY_MS, TimeUnit.MILLISECONDS);
+            } else {
+                AsyncLog.e(LOGTAG, "Failed to open the robot.");
+            }
+            return;
+        }
+
+        // A stop or resume that came while the robot was being opened may have missed it.
+        robot = newRobot;
+        if (halted) {
+            newRobot.emergencyStop(0);
+        } else {
+            newRobot.resume();
         }
+        startup.reach(StartupTimeline.Stage.USB_OPENED);
 
-        // Check if compatible board is already available.
-        requestPermissionIfAppropriate(context);
+        long now = SystemClock.elapsedRealtimeNanos();
+        if (detachedNanos != 0) {
+            reconnectTime.record(now - attachedNanos);
+            gapDuration.record(now - detachedNanos);
+            detachedNanos = 0;
+            AsyncLog.i(LOGTAG, "Robot reconnected; {}", reconnectTime);
+            AsyncLog.i(LOGTAG, "{}", gapDuration);
+        } else {
+            AsyncLog.i(LOGTAG, "Robot connected.");
+        }
+
+        // Catch up with control set while the robot was being opened.
+        Robot.ControlParams latest = desiredControl.get();
+        if (latest != null && desiredControlNanos >= openStartNanos) {
+            newRobot.steerRobot(latest);
+        }
+    }
+
+    // The latest control parameters if fresh enough to resume them, otherwise neutral. They
+    // are restored as they were, not as a fresh decision on a fix, and never while halted.
+    private Robot.ControlParams restorableControl() {
+        Robot.ControlParams latest = desiredControl.get();
+        if (latest != null && !halted &&
+            SystemClock.elapsedRealtimeNanos() - desiredControlNanos < RESTORE_MAX_AGE_NANOS) {
+            return new Robot.ControlParams(latest.speed, latest.turning);
+        }
+        return new Robot.ControlParams(0, 0);
+    }
+
+    private void closeRobot() {
+        if (robot != null) {
+            robot.terminate();
+            robot = null;
+        }
     }
 
     @Override
-    public void onReceive(Context context, Intent intent) {
+    public void onReceive(final Context context, Intent intent) {
         if (intent.getAction().equals(USB_PERMISSION)) {
             if (intent.getExtras().getBoolean(UsbManager.EXTRA_PERMISSION_GRANTED)) {
-                Log.i(LOGTAG, "Received USB permission request.");
-                UsbDeviceConnection connection = usbManager.openDevice(usbDevice);
-                robot = new Robot(usbDevice, connection);
+                AsyncLog.i(LOGTAG, "Received USB permission request.");
+                usbThread.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        openRobot(OPEN_ATTEMPTS);
+                    }
+                });
             } else {
-                Log.e(LOGTAG, "USB permission denied.");
+                AsyncLog.e(LOGTAG, "USB permission denied.");
             }
         }
         else if (intent.getAction().equals(UsbManager.ACTION_USB_DEVICE_ATTACHED)) {
-            Log.i(LOGTAG, "USB device attached.");
-            requestPermissionIfAppropriate(context);
+            AsyncLog.i(LOGTAG, "USB device attached.");
+            usbThread.execute(new Runnable() {
+                @Override
+                public void run() {
+                    attachedNanos = SystemClock.elapsedRealtimeNanos();
+                    connectIfAppropriate(context);
+                }
+            });
         }
         else if (intent.getAction().equals(UsbManager.ACTION_USB_DEVICE_DETACHED)) {
-            if (robot != null) {
-                robot.terminate();
-                robot = null;
-            }
-            Log.i(LOGTAG, "Robot disconnected.");
+            final UsbDevice detached = intent.getParcelableExtra(UsbManager.EXTRA_DEVICE);
+            usbThread.execute(new Runnable() {
+                @Override
+                public void run() {
+                    // Other USB devices coming and going don't affect the robot.
+                    if (robot == null || detached == null || usbDevice == null ||
+                        !detached.getDeviceName().equals(usbDevice.getDeviceName())) {
+                        return;
+                    }
+                    detachedNanos = SystemClock.elapsedRealtimeNanos();
+                    closeRobot();
+                    AsyncLog.i(LOGTAG, "Robot disconnected.");
+                }
+            });
         }
     }
 }
@@ -0,0 +1,229 @@
+package hu.elte.prabi.campusexplorer;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import name.antonsmirnov.firmata.serial.ISerial;
+import name.antonsmirnov.firmata.serial.ISerialListener;
+
+import rx.Subscriber;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests of how commands are handed from the DDP callbacks to the robot.
+ */
+public class CommandChannelTest {
+
+    private static final int BACKLOG = 10000;
+    private static final long MAX_STOP_LATENCY_MICROS = 10000;
+
+    // Stands in for the robot's USB serial port, taking whatever is written.
+    private static class NullSerial implements ISerial {
+        @Override
+        public void addListener(ISerialListener listener) {
+        }
+
+        @Override
+        public void removeListener(ISerialListener listener) {
+        }
+
+        @Override
+        public void start() {
+        }
+
+        @Override
+        public void stop() {
+        }
+
+        @Override
+        public boolean isStopping() {
+            return false;
+        }
+
+        @Override
+        public int available() {
+            return 0;
+        }
+
+        @Override
+        public void clear() {
+        }
+
+        @Override
+        public int read() {
+            return -1;
+        }
+
+        @Override
+        public void write(int value) {
+        }
+
+        @Override
+        public void write(byte[] bytes) {
+        }
+    }
+
+    // Feeds a backlog of waypoints, then a stop, to the channel of robot-0.
+    private static void feedBacklogThenStop(CommandChannel.CommandCallbacks callbacks) {
+        for (int wp = 0; wp < BACKLOG; wp++) {
+            callbacks.onDataAdded("directionwaypoints", "wp-" + wp,
+                                  "{\"robotId\":\"robot-0\",\"id\":" + wp +
+                                  ",\"lat\":47.473,\"lng\":19.061}");
+        }
+        callbacks.onDataAdded("robotstate", "state", "{\"state\":\"Stop\"}");
+    }
+
+    // Counts the commands emitted, holding up the first one until released.
+    private static class SlowSubscriber extends Subscriber<CommandChannel.Command> {
+        final AtomicInteger emitted = new AtomicInteger();
+        final CountDownLatch released = new CountDownLatch(1);
+        final CountDownLatch completed = new CountDownLatch(1);
+
+        @Override
+        public void onNext(CommandChannel.Command command) {
+            if (emitted.getAndIncrement() == 0) {
+                try {
+                    released.await(30, TimeUnit.SECONDS);
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+
+        @Override
+        public void onCompleted() {
+            completed.countDown();
+        }
+
+        @Override
+        public void onError(Throwable e) {
+            completed.countDown();
+        }
+    }
+
+    @Test
+    public void stopOvertakesBacklog() throws Exception {
+        final AtomicInteger stops = new AtomicInteger();
+        final AtomicInteger emittedAtStop = new AtomicInteger(-1);
+        final SlowSubscriber subscriber = new SlowSubscriber();
+        CommandChannel channel = new CommandChannel(null, new RobotScope("robot-0"),
+                new CommandChannel.PriorityListener() {
+                    @Override
+                    public void onStop(long receivedNanos) {
+                        emittedAtStop.set(subscriber.emitted.get());
+                        stops.incrementAndGet();
+                    }
+
+                    @Override
+                    public void onResume() {
+                    }
+                });
+        CommandChannel.CommandCallbacks callbacks = channel.new CommandCallbacks(subscriber);
+        feedBacklogThenStop(callbacks);
+
+        // The stop is acted on by the callback itself, not queued behind the waypoints.
+        assertEquals(1, stops.get());
+        assertTrue("Stop waited for " + emittedAtStop.get() + " queued commands",
+                   emittedAtStop.get() < BACKLOG);
+
+        subscriber.released.countDown();
+        callbacks.onDisconnect();
+        assertTrue("The channel didn't drain", subscriber.completed.await(30, TimeUnit.SECONDS));
+        assertEquals(BACKLOG + 1, subscriber.emitted.get());
+        channel.terminate();
+    }
+
+    @Test
+    public void stopIsWrittenQuicklyUnderBacklog() throws Exception {
+        LatencyHistogram stopLatency = new LatencyHistogram("Stop");
+        final Robot robot = new Robot(new NullSerial(), stopLatency, new LatencyProbe(),
+                                      new Robot.ControlParams(0, 0), false);
+        final AtomicInteger emittedAtStop = new AtomicInteger(-1);
+        final AtomicInteger emitted = new AtomicInteger();
+        final CountDownLatch stopped = new CountDownLatch(1);
+        final CountDownLatch completed = new CountDownLatch(1);
+        CommandChannel channel = new CommandChannel(null, new RobotScope("robot-0"),
+                new CommandChannel.PriorityListener() {
+                    @Override
+                    public void onStop(long receivedNanos) {
+                        emittedAtStop.set(emitted.get());
+                        robot.emergencyStop(receivedNanos);
+                        stopped.countDown();
+                    }
+
+                    @Override
+                    public void onResume() {
+                        robot.resume();
+                    }
+                });
+
+        // Every queued command steers the robot, as control does on each goal change. The
+        // first one is held up until the stop, so the backlog is still queued then.
+        CommandChannel.CommandCallbacks callbacks = channel.new CommandCallbacks(
+                new Subscriber<CommandChannel.Command>() {
+                    @Override
+                    public void onNext(CommandChannel.Command command) {
+                        if (emitted.getAndIncrement() == 0) {
+                            try {
+                                stopped.await(30, TimeUnit.SECONDS);
+                            }
+                            catch (InterruptedException e) {
+                                Thread.currentThread().interrupt();
+                            }
+                        }
+                        robot.steerRobot(new Robot.ControlParams(30, 0));
+                    }
+
+                    @Override
+                    public void onCompleted() {
+                        completed.countDown();
+                    }
+
+                    @Override
+                    public void onError(Throwable e) {
+                        completed.countDown();
+                    }
+                });
+        feedBacklogThenStop(callbacks);
+        callbacks.onDisconnect();
+        assertTrue("The channel didn't drain", completed.await(30, TimeUnit.SECONDS));
+        robot.terminate();
+        channel.terminate();
+
+        assertTrue("Stop waited for " + emittedAtStop.get() + " queued commands",
+                   emittedAtStop.get() < BACKLOG);
+        assertEquals(1, stopLatency.count());
+        assertTrue("Stop written in " + stopLatency.maxMicros() + " us",
+                   stopLatency.maxMicros() < MAX_STOP_LATENCY_MICROS);
+    }
+
+    @Test
+    public void stopIsReadFromStateField() throws Exception {
+        final AtomicInteger stops = new AtomicInteger();
+        final AtomicInteger resumes = new AtomicInteger();
+        CommandChannel channel = new CommandChannel(null, new RobotScope("robot-0"),
+                new CommandChannel.PriorityListener() {
+                    @Override
+                    public void onStop(long receivedNanos) {
+                        stops.incrementAndGet();
+                    }
+
+                    @Override
+                    public void onResume() {
+                        resumes.incrementAndGet();
+                    }
+                });
+        CommandChannel.CommandCallbacks callbacks = channel.new CommandCallbacks(new SlowSubscriber());
+        callbacks.onDataAdded("robotstate", "state", "{\"state\":\"Go\",\"note\":\"Stop\"}");
+        assertEquals(0, stops.get());
+        assertEquals(1, resumes.get());
+        callbacks.onDataAdded("robotstate", "state", "{\"robotId\":\"robot-0\",\"state\" : \"Stop\"}");
+        assertEquals(1, stops.get());
+        channel.terminate();
+    }
+}
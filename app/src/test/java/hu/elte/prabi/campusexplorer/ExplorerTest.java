@@ -0,0 +1,95 @@
+package hu.elte.prabi.campusexplorer;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import rx.observers.TestSubscriber;
+import rx.subjects.PublishSubject;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests of exploration goals on the route they are added to.
+ */
+public class ExplorerTest {
+
+    private static final double LAT = 47.4730;
+    private static final double LNG = 19.0610;
+    private static final double METRES_PER_DEGREE = 111320.0;
+    private static final float ACCURACY_M = 3.0f;
+
+    private static double lat(double northM) {
+        return LAT + northM / METRES_PER_DEGREE;
+    }
+
+    private static double lng(double eastM) {
+        return LNG + eastM / (METRES_PER_DEGREE * Math.cos(Math.toRadians(LAT)));
+    }
+
+    // Apply goal commands to the route, as the goal scan does.
+    private static void apply(Route route, List<CommandChannel.Command> commands) {
+        for (CommandChannel.Command command : commands) {
+            if (command.verb == CommandChannel.CommandVerb.ADD) {
+                route.add((CommandChannel.Waypoint) command.data);
+            } else {
+                route.remove((String) command.data);
+            }
+        }
+    }
+
+    @Test
+    public void explorationGoalSurvivesServerSync() throws Exception {
+        Explorer explorer = new Explorer(new CoverageGrid(lat(-50), lng(-50), lat(50), lng(50), 0.5));
+        Route route = new Route(2000);
+
+        // The robot starts exploring before the server has synced its route.
+        apply(route, explorer.update(lat(0), lng(0), ACCURACY_M, true, GeofenceIndex.EMPTY));
+        CommandChannel.Waypoint goal = route.nextUnvisited();
+        assertNotNull(goal);
+        assertEquals(Explorer.EXPLORATION_WAYPOINT_ID, goal.id);
+
+        // The server has no waypoints of this robot.
+        assertTrue(route.retain(Collections.<String>emptySet()).isEmpty());
+        assertSame(goal, route.nextUnvisited());
+
+        // Reaching the goal leads on to the next one.
+        route.advance(lat(0), lng(0), ACCURACY_M, 1000000000L);
+        route.advance(goal.lat, goal.lng, ACCURACY_M, 2000000000L);
+        assertTrue(goal.visited);
+        apply(route, explorer.update(goal.lat, goal.lng, ACCURACY_M, true, GeofenceIndex.EMPTY));
+        CommandChannel.Waypoint next = route.nextUnvisited();
+        assertNotNull(next);
+        assertNotSame(goal, next);
+        assertEquals(Explorer.EXPLORATION_WAYPOINT_ID, next.id);
+    }
+
+    @Test
+    public void retiringLastGoalStopsRobotEachTime() throws Exception {
+        Explorer explorer = new Explorer(new CoverageGrid(lat(-50), lng(-50), lat(50), lng(50), 0.5));
+        Route route = new Route(2000);
+        PublishSubject<Route> routes = PublishSubject.create();
+        TestSubscriber<CommandChannel.Waypoint> goals = new TestSubscriber<>();
+        routes.compose(Route.goals()).subscribe(goals);
+
+        // Exploration is switched on and off twice, retiring the only goal each time.
+        apply(route, explorer.update(lat(0), lng(0), ACCURACY_M, true, GeofenceIndex.EMPTY));
+        routes.onNext(route);
+        CommandChannel.Waypoint first = route.nextUnvisited();
+        apply(route, explorer.update(lat(0), lng(0), ACCURACY_M, false, GeofenceIndex.EMPTY));
+        routes.onNext(route);
+        apply(route, explorer.update(lat(0), lng(0), ACCURACY_M, true, GeofenceIndex.EMPTY));
+        routes.onNext(route);
+        routes.onNext(route);
+        CommandChannel.Waypoint second = route.nextUnvisited();
+        apply(route, explorer.update(lat(0), lng(0), ACCURACY_M, false, GeofenceIndex.EMPTY));
+        routes.onNext(route);
+
+        // Each goal and each stop comes through once.
+        assertNotNull(first);
+        assertNotNull(second);
+        assertEquals(Arrays.asList(first, null, second, null), goals.getOnNextEvents());
+    }
+}
@@ -0,0 +1,132 @@
+package hu.elte.prabi.campusexplorer;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import rx.Subscriber;
+
+import static org.junit.Assert.*;
+
+/**
+ * Load test of per-robot command processing as the fleet sharing one DDP server grows.
+ *
+ * The whole fleet's documents are fed unfiltered through the command channel's callbacks,
+ * as an unscoped publication would deliver them, and the commands parsed and emitted for one
+ * robot are counted. Foreign documents are still scanned for their robot ID, which costs
+ * time in proportion to the fleet, so per-robot CPU only stays flat with the server-side
+ * filter the subscriptions ask for.
+ */
+public class FleetLoadTest {
+
+    private static final int WAYPOINTS_PER_ROBOT = 500;
+    private static final int[] FLEET_SIZES = new int[]{1, 10, 25, 50};
+
+    private static final CommandChannel.PriorityListener IGNORE_PRIORITY =
+            new CommandChannel.PriorityListener() {
+                @Override
+                public void onStop(long receivedNanos) {
+                }
+
+                @Override
+                public void onResume() {
+                }
+            };
+
+    // Collects the commands emitted until the channel completes.
+    private static class Recorder extends Subscriber<CommandChannel.Command> {
+        final List<CommandChannel.Command> commands = new ArrayList<>();
+        final CountDownLatch completed = new CountDownLatch(1);
+
+        @Override
+        public void onNext(CommandChannel.Command command) {
+            commands.add(command);
+        }
+
+        @Override
+        public void onCompleted() {
+            completed.countDown();
+        }
+
+        @Override
+        public void onError(Throwable e) {
+            completed.countDown();
+        }
+    }
+
+    private static String documentId(int robot, int wp) {
+        return "robot-" + robot + "-wp-" + wp;
+    }
+
+    private static String waypointJson(int robot, int wp) {
+        return "{\"robotId\":\"robot-" + robot + "\",\"id\":" + wp +
+               ",\"lat\":47.47" + wp + ",\"lng\":19.06" + wp + "}";
+    }
+
+    // Feed the fleet's waypoints, then their removal, to the channel of robot-0.
+    private static Recorder runFleet(int fleetSize) throws InterruptedException {
+        CommandChannel channel = new CommandChannel(null, new RobotScope("robot-0"), IGNORE_PRIORITY);
+        Recorder recorder = new Recorder();
+        CommandChannel.CommandCallbacks callbacks = channel.new CommandCallbacks(recorder);
+        for (int wp = 0; wp < WAYPOINTS_PER_ROBOT; wp++) {
+            for (int robot = 0; robot < fleetSize; robot++) {
+                callbacks.onDataAdded("directionwaypoints", documentId(robot, wp),
+                                      waypointJson(robot, wp));
+            }
+        }
+        for (int wp = 0; wp < WAYPOINTS_PER_ROBOT; wp++) {
+            for (int robot = 0; robot < fleetSize; robot++) {
+                callbacks.onDataRemoved("directionwaypoints", documentId(robot, wp));
+            }
+        }
+        callbacks.onDisconnect();
+        assertTrue("The channel didn't drain", recorder.completed.await(30, TimeUnit.SECONDS));
+        channel.terminate();
+        return recorder;
+    }
+
+    @Test
+    public void scopeAcceptsOwnAndUntaggedDocuments() throws Exception {
+        RobotScope scope = new RobotScope("robot-1");
+        assertTrue(scope.accepts("{\"robotId\":\"robot-1\",\"id\":0}"));
+        assertTrue(scope.accepts("{\"robotId\" : \"robot-1\"}"));
+        assertTrue(scope.accepts("{\"state\":\"Stop\"}"));
+        assertFalse(scope.accepts("{\"robotId\":\"robot-10\",\"id\":0}"));
+        assertFalse(scope.accepts("{\"robotId\":\"robot-\",\"id\":0}"));
+        assertFalse(scope.accepts("{\"robotId\":null}"));
+    }
+
+    @Test
+    public void subscriptionsAskForOwnDocuments() throws Exception {
+        assertArrayEquals(new Object[]{"robot-1"}, new RobotScope("robot-1").subscriptionParams());
+    }
+
+    @Test
+    public void perRobotCommandsStayFlatAsFleetGrows() throws Exception {
+        for (int fleetSize : FLEET_SIZES) {
+            Recorder recorder = runFleet(fleetSize);
+
+            // Only this robot's documents are parsed and emitted, however many robots there are.
+            int added = 0;
+            int removed = 0;
+            for (CommandChannel.Command command : recorder.commands) {
+                if (command.verb == CommandChannel.CommandVerb.ADD) {
+                    CommandChannel.Waypoint wp = (CommandChannel.Waypoint) command.data;
+                    assertEquals(documentId(0, wp.id), wp.documentId);
+                    added++;
+                } else {
+                    assertEquals(CommandChannel.CommandVerb.REMOVE, command.verb);
+                    assertTrue(((String) command.data).startsWith("robot-0-"));
+                    removed++;
+                }
+            }
+            assertEquals("Waypoints emitted in a fleet of " + fleetSize,
+                         WAYPOINTS_PER_ROBOT, added);
+            assertEquals("Removals emitted in a fleet of " + fleetSize,
+                         WAYPOINTS_PER_ROBOT, removed);
+        }
+    }
+}
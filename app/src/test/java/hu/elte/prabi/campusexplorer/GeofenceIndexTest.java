@@ -0,0 +1,142 @@
+package hu.elte.prabi.campusexplorer;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests of checking locations against geofences.
+ */
+public class GeofenceIndexTest {
+
+    private static final double LAT = 47.4730;
+    private static final double LNG = 19.0610;
+    private static final double METRES_PER_DEGREE = 111320.0;
+
+    private static double lat(double northM) {
+        return LAT + northM / METRES_PER_DEGREE;
+    }
+
+    private static double lng(double eastM) {
+        return LNG + eastM / (METRES_PER_DEGREE * Math.cos(Math.toRadians(LAT)));
+    }
+
+    // A polygon through the given east, north pairs of metres.
+    private static Geofence fence(String id, boolean keepOut, double... eastNorthM) {
+        double[] lats = new double[eastNorthM.length / 2];
+        double[] lngs = new double[eastNorthM.length / 2];
+        for (int i = 0; i < lats.length; i++) {
+            lngs[i] = lng(eastNorthM[2 * i]);
+            lats[i] = lat(eastNorthM[2 * i + 1]);
+        }
+        return new Geofence(id, keepOut, lats, lngs);
+    }
+
+    // A regular polygon approximating a circle.
+    private static Geofence circle(String id, boolean keepOut, double eastM, double northM,
+                                   double radiusM, int vertices) {
+        double[] eastNorthM = new double[2 * vertices];
+        for (int i = 0; i < vertices; i++) {
+            double angle = 2 * Math.PI * i / vertices;
+            eastNorthM[2 * i] = eastM + radiusM * Math.cos(angle);
+            eastNorthM[2 * i + 1] = northM + radiusM * Math.sin(angle);
+        }
+        return fence(id, keepOut, eastNorthM);
+    }
+
+    @Test
+    public void concavePolygonContainsOnlyItsInside() throws Exception {
+        // An L shape, missing its north-east quarter.
+        Geofence l = fence("l", true, 0, 0, 20, 0, 20, 10, 10, 10, 10, 20, 0, 20);
+        assertTrue(l.contains(lat(5), lng(5)));
+        assertTrue(l.contains(lat(5), lng(15)));
+        assertTrue(l.contains(lat(15), lng(5)));
+        assertFalse(l.contains(lat(15), lng(15)));
+        assertFalse(l.contains(lat(-5), lng(5)));
+        assertFalse(l.contains(lat(5), lng(25)));
+    }
+
+    @Test
+    public void emptyIndexPermitsEverywhere() throws Exception {
+        assertEquals(0, GeofenceIndex.EMPTY.size());
+        assertTrue(GeofenceIndex.EMPTY.permits(lat(0), lng(0)));
+        assertTrue(GeofenceIndex.EMPTY.permitsAhead(lat(0), lng(0), 90.0, 5.0));
+    }
+
+    @Test
+    public void keepOutInsideKeepIn() throws Exception {
+        GeofenceIndex index = new GeofenceIndex(Arrays.asList(
+                fence("campus", false, 0, 0, 100, 0, 100, 100, 0, 100),
+                fence("pond", true, 40, 40, 60, 40, 60, 60, 40, 60)));
+        assertTrue(index.permits(lat(10), lng(10)));
+        assertFalse(index.permits(lat(50), lng(50)));
+        assertFalse(index.permits(lat(150), lng(50)));
+        assertTrue(index.permitsAhead(lat(50), lng(30), 0.0, 5.0));
+        assertFalse(index.permitsAhead(lat(50), lng(35), 90.0, 10.0));
+    }
+
+    @Test
+    public void keepOutAloneForbidsOnlyItsInside() throws Exception {
+        GeofenceIndex index = new GeofenceIndex(Collections.singletonList(
+                fence("pond", true, 40, 40, 60, 40, 60, 60, 40, 60)));
+        assertTrue(index.permits(lat(150), lng(50)));
+        assertFalse(index.permits(lat(50), lng(50)));
+    }
+
+    @Test
+    public void turnsAwayFromBorderOrStops() throws Exception {
+        GeofenceIndex index = new GeofenceIndex(Collections.singletonList(
+                fence("campus", false, 0, 0, 100, 0, 100, 100, 0, 100)));
+
+        // Heading north in the open, the preferred turn is kept.
+        assertEquals(Integer.valueOf(10), index.clearTurn(lat(50), lng(50), 0.0, 10, 30, 5.0));
+
+        // Heading north-east at the eastern border, only turning left keeps inside.
+        assertEquals(Integer.valueOf(-30), index.clearTurn(lat(50), lng(97), 45.0, 10, 30, 5.0));
+
+        // Heading into a corner, there is no way ahead.
+        assertNull(index.clearTurn(lat(98), lng(98), 45.0, 0, 30, 5.0));
+    }
+
+    @Test
+    public void manyDetailedFencesCheckFast() throws Exception {
+        // 500 fences of 200 vertices, in a 25 x 20 grid within a keep-in area.
+        List<Geofence> fences = new ArrayList<>();
+        fences.add(fence("campus", false, -10, -10, 760, -10, 760, 610, -10, 610));
+        for (int i = 0; i < 499; i++) {
+            fences.add(circle("fence-" + i, true, 30 * (i % 25), 30 * (i / 25), 10.0, 200));
+        }
+        GeofenceIndex index = new GeofenceIndex(fences);
+
+        Random random = new Random(1);
+        int queries = 100000;
+        double[] lats = new double[queries];
+        double[] lngs = new double[queries];
+        for (int i = 0; i < queries; i++) {
+            lats[i] = lat(random.nextDouble() * 600);
+            lngs[i] = lng(random.nextDouble() * 750);
+        }
+
+        // Keep the best of several rounds, after warming up.
+        long bestNanos = Long.MAX_VALUE;
+        int permitted = 0;
+        for (int round = 0; round < 10; round++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < queries; i++) {
+                if (index.permits(lats[i], lngs[i])) {
+                    permitted++;
+                }
+            }
+            bestNanos = Math.min(bestNanos, System.nanoTime() - start);
+        }
+        assertTrue(permitted > 0);
+        long nanosPerCheck = bestNanos / queries;
+        assertTrue("A check took " + nanosPerCheck + " ns", nanosPerCheck < 1000);
+    }
+}
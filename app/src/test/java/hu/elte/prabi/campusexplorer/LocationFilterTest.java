@@ -0,0 +1,69 @@
+package hu.elte.prabi.campusexplorer;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests of cleaning the raw location stream.
+ */
+public class LocationFilterTest {
+
+    private static final double LAT = 47.4730;
+    private static final double LNG = 19.0610;
+    private static final double METRES_PER_DEGREE = 111320.0;
+    private static final long SECOND_NANOS = 1000000000L;
+    private static final float ACCURACY_M = 5.0f;
+
+    private final LocationFilter filter = new LocationFilter(10.0f, 5.0f, 0.6);
+
+    // A fix the given number of seconds and metres from the start.
+    private boolean fix(int second, double northM, double eastM) {
+        return filter.accept(second * SECOND_NANOS, LAT + northM / METRES_PER_DEGREE,
+                LNG + eastM / (METRES_PER_DEGREE * Math.cos(Math.toRadians(LAT))), ACCURACY_M);
+    }
+
+    @Test
+    public void repeatedFixIsDropped() throws Exception {
+        assertTrue(fix(1, 0.0, 0.0));
+        assertFalse(fix(1, 0.0, 0.0));
+        assertTrue(fix(2, 1.0, 0.0));
+    }
+
+    @Test
+    public void singleJumpIsRejected() throws Exception {
+        assertTrue(fix(1, 0.0, 0.0));
+        assertFalse(fix(2, 500.0, 0.0));
+        assertTrue(fix(3, 2.0, 0.0));
+    }
+
+    @Test
+    public void unrelatedJumpsAreRejected() throws Exception {
+        assertTrue(fix(1, 0.0, 0.0));
+        assertFalse(fix(2, 500.0, 0.0));
+        assertFalse(fix(3, 0.0, 500.0));
+        assertFalse(fix(4, -500.0, 0.0));
+        assertFalse(fix(5, 0.0, -500.0));
+        assertTrue(fix(6, 2.0, 0.0));
+    }
+
+    @Test
+    public void agreeingJumpsReanchor() throws Exception {
+        assertTrue(fix(1, 0.0, 0.0));
+        assertFalse(fix(2, 500.0, 0.0));
+        assertFalse(fix(3, 501.0, 0.0));
+        assertTrue(fix(4, 502.0, 0.0));
+        assertTrue(fix(5, 503.0, 0.0));
+        assertFalse(fix(6, 0.0, 0.0));
+    }
+
+    @Test
+    public void repeatedOutlierDoesNotCountTowardReanchoring() throws Exception {
+        assertTrue(fix(1, 0.0, 0.0));
+        assertFalse(fix(2, 500.0, 0.0));
+        assertFalse(fix(2, 500.0, 0.0));
+        assertFalse(fix(2, 500.0, 0.0));
+        assertFalse(fix(3, 501.0, 0.0));
+        assertTrue(fix(4, 502.0, 0.0));
+    }
+}
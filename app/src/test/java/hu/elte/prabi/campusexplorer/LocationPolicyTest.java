@@ -0,0 +1,42 @@
+package hu.elte.prabi.campusexplorer;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests of choosing location sampling for what the robot is doing.
+ */
+public class LocationPolicyTest {
+
+    private static final long CONTROL_TIMEOUT_MS = 2000;
+
+    private final LocationPolicy policy =
+            new LocationPolicy(10.0f, 15.0f, 3.0f, 20, 3, CONTROL_TIMEOUT_MS / 2);
+
+    @Test
+    public void pausedOrIdleRobotSamplesSlowly() throws Exception {
+        assertEquals(LocationPolicy.IDLE, policy.select(true, true, 100.0f, 1.0f, 0, 100));
+        assertEquals(LocationPolicy.IDLE, policy.select(false, false, 0.0f, -1.0f, 0, 100));
+    }
+
+    @Test
+    public void goalWithoutUsableFixAsksForAccurateFixes() throws Exception {
+        LocationPolicy.Setting setting = policy.select(false, true, -1.0f, -1.0f, 0, 100);
+        assertEquals(LocationPolicy.DEFAULT, setting);
+        assertTrue(setting.highAccuracy);
+    }
+
+    @Test
+    public void drivingIntervalStaysWithinControlTimeout() throws Exception {
+        LocationPolicy.Setting setting = policy.select(false, true, 1000.0f, 0.5f, 0, 0);
+        assertTrue(setting.highAccuracy);
+        assertTrue("Sampling every " + setting.intervalMS + " ms",
+                   setting.intervalMS <= CONTROL_TIMEOUT_MS / 2);
+    }
+
+    @Test
+    public void sharpTurnSamplesFastest() throws Exception {
+        assertEquals(250, policy.select(false, true, 1000.0f, 0.5f, 45, 0).intervalMS);
+    }
+}
@@ -0,0 +1,137 @@
+package hu.elte.prabi.campusexplorer;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import name.antonsmirnov.firmata.serial.ISerial;
+import name.antonsmirnov.firmata.serial.ISerialListener;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests of what is written to the robot's servos.
+ */
+public class RobotTest {
+
+    private static final int START_SYSEX = 0xF0;
+    private static final int END_SYSEX = 0xF7;
+    private static final int SERVO_CONFIG = 0x70;
+    private static final int SPEED_PIN = 8;
+
+    // Records the speeds written to the speed servo, from the sysex messages written.
+    private static class RecordingSerial implements ISerial {
+        final List<Integer> speeds = new ArrayList<>();
+        final List<Integer> message = new ArrayList<>();
+
+        @Override
+        public void addListener(ISerialListener listener) {
+        }
+
+        @Override
+        public void removeListener(ISerialListener listener) {
+        }
+
+        @Override
+        public void start() {
+        }
+
+        @Override
+        public void stop() {
+        }
+
+        @Override
+        public boolean isStopping() {
+            return false;
+        }
+
+        @Override
+        public int available() {
+            return 0;
+        }
+
+        @Override
+        public void clear() {
+        }
+
+        @Override
+        public int read() {
+            return -1;
+        }
+
+        @Override
+        public synchronized void write(int value) {
+            value &= 0xFF;
+            if (value == START_SYSEX) {
+                message.clear();
+            } else if (value == END_SYSEX) {
+                // Servo config: pin, minimum and maximum pulse, then angle, in 7 bit pairs.
+                if (message.size() == 8 && message.get(0) == SERVO_CONFIG &&
+                    message.get(1) == SPEED_PIN) {
+                    speeds.add(90 - (message.get(6) | message.get(7) << 7));
+                }
+            } else {
+                message.add(value);
+            }
+        }
+
+        @Override
+        public synchronized void write(byte[] bytes) {
+            for (byte value : bytes) {
+                write(value);
+            }
+        }
+
+        synchronized List<Integer> speeds() {
+            return new ArrayList<>(speeds);
+        }
+
+        // Wait for the given number of speeds to be written.
+        List<Integer> awaitSpeeds(int count) throws InterruptedException {
+            for (int i = 0; i < 500 && speeds().size() < count; i++) {
+                Thread.sleep(10);
+            }
+            return speeds();
+        }
+    }
+
+    private static Robot open(RecordingSerial serial, Robot.ControlParams initial, boolean halted)
+            throws Exception {
+        return new Robot(serial, new LatencyHistogram("Stop"), new LatencyProbe(), initial, halted);
+    }
+
+    @Test
+    public void restoredControlIsWritten() throws Exception {
+        RecordingSerial serial = new RecordingSerial();
+        Robot robot = open(serial, new Robot.ControlParams(30, 0), false);
+        try {
+            assertEquals(Integer.valueOf(30), serial.awaitSpeeds(1).get(0));
+        }
+        finally {
+            robot.terminate();
+        }
+    }
+
+    @Test
+    public void haltedRobotDoesNotDriveUntilResumed() throws Exception {
+        RecordingSerial serial = new RecordingSerial();
+        Robot robot = open(serial, new Robot.ControlParams(30, 0), true);
+        try {
+            robot.steerRobot(new Robot.ControlParams(30, 5));
+            List<Integer> speeds = serial.awaitSpeeds(1);
+            assertFalse(speeds.isEmpty());
+            for (int speed : speeds) {
+                assertEquals(0, speed);
+            }
+
+            robot.resume();
+            robot.steerRobot(new Robot.ControlParams(30, 0));
+            speeds = serial.awaitSpeeds(speeds.size() + 1);
+            assertEquals(Integer.valueOf(30), speeds.get(speeds.size() - 1));
+        }
+        finally {
+            robot.terminate();
+        }
+    }
+}
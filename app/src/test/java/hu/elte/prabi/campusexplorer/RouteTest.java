@@ -0,0 +1,141 @@
+package hu.elte.prabi.campusexplorer;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests of arrival detection along the driven path.
+ */
+public class RouteTest {
+
+    private static final double LAT = 47.4730;
+    private static final double LNG = 19.0610;
+    private static final double METRES_PER_DEGREE = 111320.0;
+    private static final double RADIUS_M = 5.0;
+    private static final long MAX_FIX_GAP_MS = 2000;
+    private static final long SECOND_NANOS = 1000000000L;
+
+    // Time of the latest fix, one second apart.
+    private long fixNanos = 0;
+
+    private static double lat(double northM) {
+        return LAT + northM / METRES_PER_DEGREE;
+    }
+
+    private static double lng(double eastM) {
+        return LNG + eastM / (METRES_PER_DEGREE * Math.cos(Math.toRadians(LAT)));
+    }
+
+    private static CommandChannel.Waypoint waypoint(int id, double eastM, double northM) {
+        return new CommandChannel.Waypoint(lat(northM), lng(eastM), id, "wp-" + id);
+    }
+
+    private void fix(Route route, double eastM, double northM, double radiusM) {
+        fixNanos += SECOND_NANOS;
+        route.advance(lat(northM), lng(eastM), radiusM, fixNanos);
+    }
+
+    // Drive east along a line the given distance north of the waypoints, in 2 m steps.
+    private void driveEast(Route route, double northM, double fromEastM, double toEastM) {
+        for (double east = fromEastM; east <= toEastM; east += 2.0) {
+            fix(route, east, northM, RADIUS_M);
+        }
+    }
+
+    @Test
+    public void waypointPassedWithinRadiusIsVisited() throws Exception {
+        Route route = new Route(MAX_FIX_GAP_MS);
+        CommandChannel.Waypoint goal = waypoint(1, 0.0, 0.0);
+        route.add(goal);
+        driveEast(route, 3.0, -20.0, 20.0);
+        assertTrue(goal.visited);
+        assertNull(route.nextUnvisited());
+    }
+
+    @Test
+    public void overshotGoalIsVisited() throws Exception {
+        Route route = new Route(MAX_FIX_GAP_MS);
+        CommandChannel.Waypoint goal = waypoint(1, 0.0, 0.0);
+        route.add(goal);
+        driveEast(route, 8.0, -20.0, 20.0);
+        assertTrue(goal.visited);
+    }
+
+    @Test
+    public void laterWaypointIsNotOvershotOutOfOrder() throws Exception {
+        Route route = new Route(MAX_FIX_GAP_MS);
+        CommandChannel.Waypoint goal = waypoint(1, 200.0, 0.0);
+        CommandChannel.Waypoint later = waypoint(2, 0.0, 0.0);
+        route.add(goal);
+        route.add(later);
+        driveEast(route, 8.0, -20.0, 20.0);
+        assertFalse(later.visited);
+        assertSame(goal, route.nextUnvisited());
+    }
+
+    @Test
+    public void jitterNearGoalDoesNotVisitIt() throws Exception {
+        Route route = new Route(MAX_FIX_GAP_MS);
+        CommandChannel.Waypoint goal = waypoint(1, 0.0, 0.0);
+        route.add(goal);
+        // Standing still beside the goal, with fixes scattered well within their accuracy.
+        Random random = new Random(1);
+        for (int fix = 0; fix < 1000; fix++) {
+            fix(route, 3.0 * (random.nextDouble() - 0.5), 8.0 + 3.0 * (random.nextDouble() - 0.5),
+                RADIUS_M);
+        }
+        assertFalse(goal.visited);
+    }
+
+    @Test
+    public void drivingAwayFromNearbyGoalDoesNotPassIt() throws Exception {
+        Route route = new Route(MAX_FIX_GAP_MS);
+        CommandChannel.Waypoint goal = waypoint(1, 0.0, 0.0);
+        route.add(goal);
+        for (double east = 0.0; east <= 12.0; east += 2.0) {
+            fix(route, east, -15.0, 10.0);
+        }
+        for (double north = -15.0; north >= -27.0; north -= 2.0) {
+            fix(route, 12.0, north, 10.0);
+        }
+        assertFalse(goal.visited);
+        assertSame(goal, route.nextUnvisited());
+    }
+
+    @Test
+    public void fixesAcrossGapAreNotJoined() throws Exception {
+        Route route = new Route(MAX_FIX_GAP_MS);
+        CommandChannel.Waypoint goal = waypoint(1, 0.0, 0.0);
+        route.add(goal);
+        fix(route, -20.0, 0.0, RADIUS_M);
+        fixNanos += 60 * SECOND_NANOS;
+        fix(route, 20.0, 0.0, RADIUS_M);
+        assertFalse(goal.visited);
+    }
+
+    @Test
+    public void nextUnvisitedFollowsAddsAndRemovals() throws Exception {
+        Route route = new Route(MAX_FIX_GAP_MS);
+        CommandChannel.Waypoint first = waypoint(1, 0.0, 0.0);
+        CommandChannel.Waypoint second = waypoint(2, 100.0, 0.0);
+        route.add(first);
+        route.add(second);
+        driveEast(route, 0.0, -10.0, 10.0);
+        assertSame(second, route.nextUnvisited());
+
+        // A waypoint added before the goal becomes the goal.
+        CommandChannel.Waypoint earlier = waypoint(0, -100.0, 0.0);
+        route.add(earlier);
+        assertSame(earlier, route.nextUnvisited());
+
+        route.remove(earlier.documentId);
+        assertSame(second, route.nextUnvisited());
+        route.remove(first.documentId);
+        assertSame(second, route.nextUnvisited());
+        route.remove(second.documentId);
+        assertNull(route.nextUnvisited());
+    }
+}